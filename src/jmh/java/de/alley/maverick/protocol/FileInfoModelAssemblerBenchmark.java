@@ -0,0 +1,59 @@
+package de.alley.maverick.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.hateoas.EntityModel;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The links added to every file of a response, built from the current request like in the controller.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class FileInfoModelAssemblerBenchmark {
+
+    private FileInfoModelAssembler assembler;
+    private FileInfo fileInfo;
+
+    @Setup
+    public void setup() {
+        // the state is per thread, so the request is bound to the benchmark thread
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/file/search");
+        request.setServerName("alley.example");
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+        assembler = new FileInfoModelAssembler();
+        fileInfo = FileInfo.builder()
+                .id("id:a4ayc_80_OEAAAAAAAAAXw")
+                .name("report-2020.pdf")
+                .path("/documents/reports/report-2020.pdf")
+                .size(123456L)
+                .tags(Arrays.asList("finance", "2020", "quarterly", "draft"))
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Benchmark
+    public EntityModel<FileInfo> toModel() {
+        return assembler.toModel(fileInfo);
+    }
+
+}
@@ -0,0 +1,90 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.v2.files.FileMetadata;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.TagOperationForm;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The conversions of every file going through a request or a synchronization:
+ * dropbox metadata to file, file to elasticsearch source and back, tag operations to a bulk request.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class FileInfoConversionBenchmark {
+
+    private static final int TAG_OPERATIONS = 100;
+
+    private FileMetadata metadata;
+    private FileInfo fileInfo;
+    private Map<String, Object> source;
+    private List<TagOperationForm> operations;
+    private ElasticsearchRepo esRepo;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        // only the request builders and parsers are measured, nothing is sent
+        RepositoryMetrics metrics = new RepositoryMetrics(new SimpleMeterRegistry());
+        esRepo = new ElasticsearchRepo(null, objectMapper, metrics, new ElasticsearchDeadLetterRepo(null, objectMapper, metrics));
+        metadata = FileMetadata.newBuilder("report-2020.pdf", "id:a4ayc_80_OEAAAAAAAAAXw", new Date(), new Date(),
+                "015a4ef1ab6a1ba00000001a3bdc5a0", 123456L)
+                .withPathLower("/documents/reports/report-2020.pdf")
+                .withPathDisplay("/Documents/Reports/report-2020.pdf")
+                .build();
+        fileInfo = FileInfoMapper.map(metadata);
+        fileInfo.setTags(Arrays.asList("finance", "2020", "quarterly", "draft"));
+        source = objectMapper.convertValue(fileInfo, Map.class);
+        operations = IntStream.range(0, TAG_OPERATIONS)
+                .mapToObj(i -> TagOperationForm.builder()
+                        .fileId("id:file-" + i)
+                        .mode(Mode.values()[i % Mode.values().length])
+                        .tags(fileInfo.getTags())
+                        .build())
+                .collect(Collectors.toList());
+    }
+
+    @Benchmark
+    public FileInfo mapDropboxMetadata() {
+        return FileInfoMapper.map(metadata);
+    }
+
+    @Benchmark
+    public IndexRequest convertToSource() {
+        return esRepo.prepareIndexRequest(fileInfo);
+    }
+
+    @Benchmark
+    public FileInfo convertFromSource() {
+        return esRepo.toFileInfo(source);
+    }
+
+    @Benchmark
+    public BulkRequest prepareTagOperations() {
+        return esRepo.prepareTagsBulkRequest(operations);
+    }
+
+}
@@ -0,0 +1,32 @@
+package de.alley.maverick.web;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validation of the file id done on every request addressing a file, for each kind of dropbox id.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class FileIdValidationBenchmark {
+
+    @Param({"id:a4ayc_80_OEAAAAAAAAAXw", "/documents/reports/report-2020.pdf", "ns:123456/reports", "invalid"})
+    private String fileId;
+
+    @Benchmark
+    public boolean validateFileId() {
+        return FileRestController.isNotValidFileId(fileId);
+    }
+
+}
@@ -0,0 +1,193 @@
+package de.alley.maverick.loadtest;
+
+import com.dropbox.core.v2.DbxClientV2;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.testcontainers.containers.wait.strategy.Wait;
+import org.testcontainers.elasticsearch.ElasticsearchContainer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Mixed search, get and tag traffic against the whole application, backed by a local elasticsearch
+ * and a dropbox stub. It only runs in the loadtest profile, the settings are system properties:
+ * <pre>
+ * mvn -P loadtest verify -Dloadtest.users=32 -Dloadtest.durationSeconds=120 -Dloadtest.dropbox.rateLimitEvery=50
+ * </pre>
+ * The report is logged and written to target/loadtest-report.txt.
+ */
+@Slf4j
+@ExtendWith({SpringExtension.class})
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ContextConfiguration(initializers = {FileApiLoadTest.Initializer.class})
+@ActiveProfiles("dropbox")
+public class FileApiLoadTest {
+
+    private static final String ELASTIC_SEARCH_DOCKER = "docker.elastic.co/elasticsearch/elasticsearch:7.8.0";
+    private static final int ELASTICSEARCH_DEFAULT_PORT = 9200;
+    private static final Path REPORT = Paths.get("target", "loadtest-report.txt");
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 16);
+    private static final int WARMUP_SECONDS = Integer.getInteger("loadtest.warmupSeconds", 15);
+    private static final int DURATION_SECONDS = Integer.getInteger("loadtest.durationSeconds", 60);
+    private static final int FILES = Integer.getInteger("loadtest.files", 5000);
+    private static final int UNLISTED_FILES = Integer.getInteger("loadtest.unlistedFiles", 500);
+    private static final int DROPBOX_LATENCY_MILLIS = Integer.getInteger("loadtest.dropbox.latencyMillis", 80);
+    private static final int DROPBOX_RATE_LIMIT_EVERY = Integer.getInteger("loadtest.dropbox.rateLimitEvery", 0);
+    private static final boolean DROPBOX_DIRECT = Boolean.parseBoolean(System.getProperty("loadtest.dropbox.direct", "true"));
+    private static final double MAX_ERROR_RATIO = Double.parseDouble(System.getProperty("loadtest.maxErrorRatio", "0.01"));
+
+    private static final ElasticsearchContainer ELASTICSEARCH_CONTAINER =
+            new ElasticsearchContainer(ELASTIC_SEARCH_DOCKER)
+                    .withExposedPorts(ELASTICSEARCH_DEFAULT_PORT)
+                    .withEnv("cluster.name", "elasticsearch")
+                    .withEnv("discovery.type", "single-node")
+                    .waitingFor(Wait.forHttp("/").forStatusCode(200).withStartupTimeout(Duration.ofMinutes(3)));
+
+    private static final LoadTestDropbox DROPBOX;
+
+    static {
+        ELASTICSEARCH_CONTAINER.start();
+        try {
+            DROPBOX = new LoadTestDropbox(FILES, UNLISTED_FILES, DROPBOX_LATENCY_MILLIS, DROPBOX_RATE_LIMIT_EVERY);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static class Initializer implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+        @Override
+        public void initialize(ConfigurableApplicationContext configurableApplicationContext) {
+            TestPropertyValues.of(
+                    "elasticsearch.host=" + ELASTICSEARCH_CONTAINER.getContainerIpAddress(),
+                    "elasticsearch.port=" + ELASTICSEARCH_CONTAINER.getMappedPort(ELASTICSEARCH_DEFAULT_PORT),
+                    "DROPBOX_DIRECT=" + DROPBOX_DIRECT
+            ).applyTo(configurableApplicationContext.getEnvironment());
+        }
+    }
+
+    /**
+     * Every dropbox client of the application talks to the stub.
+     */
+    @TestConfiguration
+    static class DropboxStubConfig {
+        @Bean
+        static BeanPostProcessor dropboxStubClients() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    return bean instanceof DbxClientV2 ? DROPBOX.getStub().client() : bean;
+                }
+            };
+        }
+    }
+
+    @LocalServerPort
+    private int port;
+
+    @Value("${server.servlet.context-path}")
+    private String contextPath;
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @AfterAll
+    public static void tearDown() {
+        DROPBOX.getStub().stop();
+    }
+
+    @Test
+    public void testMixedTraffic() throws Exception {
+        String base = "http://localhost:" + port + contextPath;
+        awaitSynchronization(base);
+
+        LoadReport report = new LoadDriver(http, USERS, Duration.ofSeconds(WARMUP_SECONDS), Duration.ofSeconds(DURATION_SECONDS))
+                .operation("search", 45, random -> get(base + "/search?fileName=" + encode(searchTerm(random))))
+                .operation("searchTags", 10, random -> get(base + "/search?tags=" + encode(tag(random))))
+                .operation("get", 30, random -> get(base + "/" + LoadTestDropbox.fileId(random.nextInt(FILES + UNLISTED_FILES))))
+                .operation("mergeTags", 15, random -> HttpRequest.newBuilder(
+                        URI.create(base + "/" + LoadTestDropbox.fileId(random.nextInt(FILES)) + "/tags"))
+                        .header("Content-Type", "application/json")
+                        .PUT(HttpRequest.BodyPublishers.ofString("{\"tags\": [\"" + tag(random) + "\"]}"))
+                        .build())
+                .run();
+
+        String formatted = String.format("%d users, %d s, %d files, dropbox latency %d ms, rate limit every %d, "
+                        + "%d dropbox rate limits%n%s", USERS, DURATION_SECONDS, FILES, DROPBOX_LATENCY_MILLIS,
+                DROPBOX_RATE_LIMIT_EVERY, DROPBOX.getStub().rateLimited(), report.format());
+        log.info(String.format("Load test report%n%s", formatted));
+        Files.createDirectories(REPORT.getParent());
+        Files.write(REPORT, formatted.getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(report.getRequests() > 0);
+        assertTrue(report.getErrors() <= report.getRequests() * MAX_ERROR_RATIO,
+                String.format("%d of %d requests failed", report.getErrors(), report.getRequests()));
+    }
+
+    /**
+     * The application synchronizes on startup, the load starts once every listed file is exported from the index.
+     */
+    private void awaitSynchronization(String base) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(5);
+        long indexed = 0;
+        while (System.nanoTime() < deadline) {
+            HttpResponse<java.util.stream.Stream<String>> response = http.send(
+                    get(base + "/search/export?fileName=" + LoadTestDropbox.NAME_PREFIX),
+                    HttpResponse.BodyHandlers.ofLines());
+            indexed = response.statusCode() == 200 ? response.body().count() : 0;
+            if (indexed >= FILES) {
+                return;
+            }
+            TimeUnit.SECONDS.sleep(2);
+        }
+        assertEquals(FILES, indexed, "The files are not synchronized in time");
+    }
+
+    private static HttpRequest get(String uri) {
+        return HttpRequest.newBuilder(URI.create(uri)).timeout(Duration.ofSeconds(30)).GET().build();
+    }
+
+    private static String searchTerm(ThreadLocalRandom random) {
+        return random.nextBoolean()
+                ? LoadTestDropbox.WORDS[random.nextInt(LoadTestDropbox.WORDS.length)]
+                : String.format("%s-%04d", LoadTestDropbox.NAME_PREFIX, random.nextInt((FILES + UNLISTED_FILES) / 10 + 1));
+    }
+
+    private static String tag(ThreadLocalRandom random) {
+        return "tag-" + random.nextInt(20);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,121 @@
+package de.alley.maverick.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Closed model: every user sends the next request as soon as the previous one is answered,
+ * the endpoint of each request is picked by the weights. The requests of the warmup are not recorded.
+ */
+@Slf4j
+class LoadDriver {
+
+    private final HttpClient http;
+    private final int users;
+    private final Duration warmup;
+    private final Duration duration;
+    private final List<Operation> operations = new ArrayList<>();
+    private int totalWeight;
+
+    private static class Operation {
+        private final String endpoint;
+        private final int weight;
+        private final Function<ThreadLocalRandom, HttpRequest> request;
+
+        private Operation(String endpoint, int weight, Function<ThreadLocalRandom, HttpRequest> request) {
+            this.endpoint = endpoint;
+            this.weight = weight;
+            this.request = request;
+        }
+    }
+
+    LoadDriver(HttpClient http, int users, Duration warmup, Duration duration) {
+        this.http = http;
+        this.users = users;
+        this.warmup = warmup;
+        this.duration = duration;
+    }
+
+    LoadDriver operation(String endpoint, int weight, Function<ThreadLocalRandom, HttpRequest> request) {
+        operations.add(new Operation(endpoint, weight, request));
+        totalWeight += weight;
+        return this;
+    }
+
+    LoadReport run() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        long start = System.nanoTime();
+        long recordFrom = start + warmup.toNanos();
+        long end = recordFrom + duration.toNanos();
+        List<Future<LoadReport>> results = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            results.add(pool.submit(() -> runUser(recordFrom, end)));
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(warmup.plus(duration).toSeconds() + 60, TimeUnit.SECONDS)) {
+            pool.shutdownNow();
+        }
+        LoadReport report = new LoadReport(duration);
+        for (Future<LoadReport> result : results) {
+            try {
+                report.merge(result.get());
+            } catch (Exception ex) {
+                log.warn(String.format("A load test user has failed, %s", ex.getMessage()));
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Each user records into its own report, nothing is shared while the load runs.
+     */
+    private LoadReport runUser(long recordFrom, long end) {
+        LoadReport report = new LoadReport(duration);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            Operation operation = pick(random);
+            HttpRequest request = operation.request.apply(random);
+            boolean failed;
+            try {
+                HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                failed = response.statusCode() >= 400;
+            } catch (IOException ex) {
+                failed = true;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            long latency = System.nanoTime() - now;
+            if (now >= recordFrom) {
+                report.record(operation.endpoint, latency, failed);
+            }
+        }
+        return report;
+    }
+
+    private Operation pick(ThreadLocalRandom random) {
+        int ticket = random.nextInt(totalWeight);
+        for (Operation operation : operations) {
+            ticket -= operation.weight;
+            if (ticket < 0) {
+                return operation;
+            }
+        }
+        throw new IllegalStateException("No operation to pick");
+    }
+
+}
@@ -0,0 +1,87 @@
+package de.alley.maverick.loadtest;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency percentiles per endpoint.
+ */
+class LoadReport {
+
+    private static final String ROW = "%-12s %10s %8s %10s %10s %10s %10s%n";
+
+    private final Duration duration;
+    private final Map<String, Latencies> endpoints = new TreeMap<>();
+
+    private static class Latencies {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long errors;
+
+        private void add(long latency) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = latency;
+        }
+    }
+
+    LoadReport(Duration duration) {
+        this.duration = duration;
+    }
+
+    void record(String endpoint, long latencyNanos, boolean failed) {
+        Latencies latencies = endpoints.computeIfAbsent(endpoint, e -> new Latencies());
+        latencies.add(latencyNanos);
+        if (failed) {
+            latencies.errors++;
+        }
+    }
+
+    void merge(LoadReport other) {
+        other.endpoints.forEach((endpoint, latencies) -> {
+            Latencies merged = endpoints.computeIfAbsent(endpoint, e -> new Latencies());
+            for (int i = 0; i < latencies.count; i++) {
+                merged.add(latencies.nanos[i]);
+            }
+            merged.errors += latencies.errors;
+        });
+    }
+
+    long getRequests() {
+        return endpoints.values().stream().mapToLong(l -> l.count).sum();
+    }
+
+    long getErrors() {
+        return endpoints.values().stream().mapToLong(l -> l.errors).sum();
+    }
+
+    String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(ROW, "endpoint", "requests", "errors", "req/s", "p50 ms", "p99 ms", "max ms"));
+        endpoints.forEach((endpoint, latencies) -> {
+            long[] sorted = Arrays.copyOf(latencies.nanos, latencies.count);
+            Arrays.sort(sorted);
+            report.append(String.format(ROW, endpoint, latencies.count, latencies.errors,
+                    String.format("%.1f", (double) latencies.count / duration.toSeconds()),
+                    millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)),
+                    millis(sorted.length == 0 ? 0 : sorted[sorted.length - 1])));
+        });
+        return report.toString();
+    }
+
+    private static long percentile(long[] sorted, double rank) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(rank * sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+}
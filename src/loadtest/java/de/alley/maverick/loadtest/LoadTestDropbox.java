@@ -0,0 +1,117 @@
+package de.alley.maverick.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.alley.maverick.repositories.DropboxStub;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A generated dropbox account served by {@link DropboxStub}.
+ * The listed files are found by the synchronization, the unlisted ones only by id or by a direct search,
+ * so the get and search traffic also goes to dropbox.
+ */
+class LoadTestDropbox {
+
+    static final String NAME_PREFIX = "loadtest";
+    static final String[] WORDS = {"report", "invoice", "photo", "notes", "backup", "contract", "budget", "slides"};
+
+    private static final String CURSOR = "loadtest-cursor";
+    private static final String TIMESTAMP = "2020-06-01T12:00:00Z";
+    private static final String REV = "015a4ef1ab6a1ba00000001a3bdc5a0";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Map<String, ObjectNode> files = new LinkedHashMap<>();
+    private final int listedFiles;
+    private final DropboxStub stub;
+
+    LoadTestDropbox(int listedFiles, int unlistedFiles, long latencyMillis, int rateLimitEvery) throws IOException {
+        this.listedFiles = listedFiles;
+        for (int n = 0; n < listedFiles + unlistedFiles; n++) {
+            ObjectNode file = toMetadata(n);
+            files.put(file.get("id").asText(), file);
+        }
+        stub = new DropboxStub()
+                .withLatency(latencyMillis)
+                .withRateLimit(rateLimitEvery, 1)
+                .endpoint("/2/files/get_metadata", (call, request) -> getMetadata(request))
+                .endpoint("/2/files/list_folder/get_latest_cursor", call -> "{\"cursor\": \"" + CURSOR + "\"}")
+                .endpoint("/2/files/list_folder", call -> listFolder())
+                .endpoint("/2/files/list_folder/continue",
+                        call -> "{\"entries\": [], \"cursor\": \"" + CURSOR + "\", \"has_more\": false}")
+                .endpoint("/2/files/search_v2", (call, request) -> search(request))
+                .endpoint("/2/files/search/continue_v2", call -> "{\"matches\": [], \"has_more\": false}");
+    }
+
+    static String fileId(int n) {
+        return String.format("id:%s%07d", NAME_PREFIX, n);
+    }
+
+    static String fileName(int n) {
+        return String.format("%s-%05d-%s.txt", NAME_PREFIX, n, WORDS[n % WORDS.length]);
+    }
+
+    DropboxStub getStub() {
+        return stub;
+    }
+
+    private ObjectNode toMetadata(int n) {
+        ObjectNode file = objectMapper.createObjectNode()
+                .put(".tag", "file")
+                .put("name", fileName(n))
+                .put("id", fileId(n))
+                .put("client_modified", TIMESTAMP)
+                .put("server_modified", TIMESTAMP)
+                .put("rev", REV)
+                .put("size", 1024L * (n + 1));
+        String folder = "/" + WORDS[n % WORDS.length] + "s/";
+        return file.put("path_lower", folder + fileName(n)).put("path_display", folder + fileName(n));
+    }
+
+    private String getMetadata(String request) {
+        ObjectNode file = files.get(read(request).path("path").asText());
+        return file == null ? null : file.toString();
+    }
+
+    private String listFolder() {
+        ArrayNode entries = objectMapper.createArrayNode();
+        files.values().stream().limit(listedFiles).forEach(entries::add);
+        return objectMapper.createObjectNode()
+                .put("cursor", CURSOR)
+                .put("has_more", false)
+                .set("entries", entries)
+                .toString();
+    }
+
+    private String search(String request) {
+        JsonNode arg = read(request);
+        String query = arg.path("query").asText().toLowerCase(Locale.ROOT);
+        long maxResults = arg.path("options").path("max_results").asLong(100);
+        ArrayNode matches = objectMapper.createArrayNode();
+        files.values().stream()
+                .filter(file -> file.get("name").asText().contains(query))
+                .limit(maxResults)
+                .forEach(file -> matches.addObject().putObject("metadata")
+                        .put(".tag", "metadata")
+                        .set("metadata", file));
+        return objectMapper.createObjectNode()
+                .put("has_more", false)
+                .set("matches", matches)
+                .toString();
+    }
+
+    private JsonNode read(String request) {
+        try {
+            return objectMapper.readTree(request);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+}
@@ -1,9 +1,6 @@
 package de.alley.maverick;
 
-import de.alley.maverick.services.StarterSynchronizer;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.CommandLineRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.builder.SpringApplicationBuilder;
@@ -11,14 +8,15 @@ import org.springframework.boot.web.servlet.support.SpringBootServletInitializer
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
+/**
+ * Elasticsearch is awaited in the background by {@link de.alley.maverick.services.ElasticsearchReadiness},
+ * which starts the first synchronization.
+ */
 @Slf4j
 @SpringBootApplication(scanBasePackages = {"de.alley"})
 @EnableAsync
 @EnableScheduling
-public class AlleyApiApp extends SpringBootServletInitializer implements CommandLineRunner {
-
-    @Autowired
-    private StarterSynchronizer starterSynchronizer;
+public class AlleyApiApp extends SpringBootServletInitializer {
 
     @Override
     protected SpringApplicationBuilder configure(SpringApplicationBuilder builder) {
@@ -30,18 +28,4 @@ public class AlleyApiApp extends SpringBootServletInitializer implements Command
         SpringApplication.run(AlleyApiApp.class, args);
     }
 
-    @Override
-    public void run(String...args) throws Exception {
-        int i = 0; boolean result = false;
-        while (!result && i<3) {
-            Thread.sleep(10000);
-            i++;
-            log.info(String.format("Attempt #%d", i));
-            result = starterSynchronizer.checkElasticsearch();
-        }
-        if (result) {
-            starterSynchronizer.syncFiles();
-        }
-    }
-
 }
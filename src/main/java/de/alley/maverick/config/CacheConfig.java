@@ -0,0 +1,43 @@
+package de.alley.maverick.config;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.services.ExpiringCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Slf4j
+@Configuration
+public class CacheConfig {
+
+    @Value("${cache.files.maxSize:10000}")
+    private int filesMaxSize;
+
+    @Value("${cache.files.ttlSeconds:60}")
+    private long filesTtlSeconds;
+
+    @Value("${cache.missing.maxSize:10000}")
+    private int missingMaxSize;
+
+    @Value("${cache.missing.ttlSeconds:30}")
+    private long missingTtlSeconds;
+
+    @Bean("fileCache")
+    public ExpiringCache<String, FileInfo> fileCache() {
+        log.info(String.format("Init file cache -> %d entries for %d seconds", filesMaxSize, filesTtlSeconds));
+        return new ExpiringCache<>(filesMaxSize, Duration.ofSeconds(filesTtlSeconds));
+    }
+
+    /**
+     * File ids confirmed missing in dropbox.
+     */
+    @Bean("missingFileCache")
+    public ExpiringCache<String, Boolean> missingFileCache() {
+        log.info(String.format("Init missing file cache -> %d entries for %d seconds", missingMaxSize, missingTtlSeconds));
+        return new ExpiringCache<>(missingMaxSize, Duration.ofSeconds(missingTtlSeconds));
+    }
+
+}
@@ -1,30 +1,93 @@
 package de.alley.maverick.config;
 
 import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.OkHttp3Requestor;
 import com.dropbox.core.v2.DbxClientV2;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dropbox clients share one pool of kept alive connections, so the lookups and the crawls do not pay
+ * a TLS handshake per call. The retries of the calls are owned by the gateway, the SDK never retries by itself,
+ * only a pooled connection closed by dropbox is retried transparently on a fresh one.
+ */
 @Slf4j
 @Configuration
 public class DropboxConfig {
 
+    private static final long LONGPOLL_JITTER_SECONDS = 120;
+
     @Value("${dropbox.accessToken}")
     private String accessToken;
 
+    @Value("${synchronizer.longpoll.timeoutSeconds:120}")
+    private long longpollTimeoutSeconds;
+
+    @Value("${dropbox.http.connectTimeoutMillis:10000}")
+    private long connectTimeoutMillis;
+
+    @Value("${dropbox.http.readTimeoutMillis:30000}")
+    private long readTimeoutMillis;
+
+    @Value("${dropbox.http.maxIdleConnections:16}")
+    private int maxIdleConnections;
+
+    @Value("${dropbox.http.keepAliveSeconds:300}")
+    private long keepAliveSeconds;
+
+    @Value("${dropbox.http.http2:true}")
+    private boolean http2;
+
     @Autowired
     private Environment env;
 
+    @Bean("dbHttpClient")
+    public OkHttpClient dbHttpClient() {
+        return OkHttp3Requestor.defaultOkHttpClientBuilder()
+                .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveSeconds, TimeUnit.SECONDS))
+                .protocols(http2 ? List.of(Protocol.HTTP_2, Protocol.HTTP_1_1) : List.of(Protocol.HTTP_1_1))
+                .retryOnConnectionFailure(true)
+                .build();
+    }
+
+    @Primary
     @Bean
     public DbxClientV2 dpClient() {
         String access =  env.getProperty("DROPBOX_TOKEN", accessToken);
         log.info(String.format("access token for dropbox is %s", access));
-        DbxRequestConfig config = DbxRequestConfig.newBuilder("alley-test").build();
+        DbxRequestConfig config = DbxRequestConfig.newBuilder("alley-test")
+                .withHttpRequestor(new OkHttp3Requestor(dbHttpClient()))
+                .build();
         return new DbxClientV2(config, access);
     }
 
+    /**
+     * Dropbox holds a longpoll for the requested timeout plus up to 90 seconds of jitter,
+     * the read timeout of the other calls is far shorter. The connections are shared with them.
+     */
+    @Bean("dbLongpollClient")
+    public DbxClientV2 dbLongpollClient() {
+        OkHttpClient longpollHttpClient = dbHttpClient().newBuilder()
+                .readTimeout(longpollTimeoutSeconds + LONGPOLL_JITTER_SECONDS, TimeUnit.SECONDS)
+                .build();
+        DbxRequestConfig config = DbxRequestConfig.newBuilder("alley-test")
+                .withHttpRequestor(new OkHttp3Requestor(longpollHttpClient))
+                .build();
+        return new DbxClientV2(config, env.getProperty("DROPBOX_TOKEN", accessToken));
+    }
+
 }
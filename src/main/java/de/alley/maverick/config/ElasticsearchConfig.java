@@ -2,12 +2,30 @@ package de.alley.maverick.config;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpHost;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.elasticsearch.client.NodeSelector;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.sniff.ElasticsearchNodesSniffer;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The elasticsearch client, pooled and bounded.
+ * The hosts are a comma separated list of host, host:port or scheme://host:port, the port defaults to
+ * elasticsearch.port. The client spreads the requests over the hosts and skips a failed host for a while.
+ * With the sniffer the hosts are only the seed, the nodes are then read from the cluster and refreshed
+ * periodically and after every failure.
+ */
 @Slf4j
 @Configuration
 public class ElasticsearchConfig {
@@ -18,11 +36,97 @@ public class ElasticsearchConfig {
     @Value("${elasticsearch.port}")
     private String elasticsearchPort;
 
+    @Value("${elasticsearch.timeout:1000}")
+    private int connectTimeoutMillis;
+
+    @Value("${elasticsearch.client.socketTimeoutMillis:60000}")
+    private int socketTimeoutMillis;
+
+    /**
+     * Waiting for a pooled connection fails after it, the requests never queue unnoticed.
+     */
+    @Value("${elasticsearch.client.poolTimeoutMillis:5000}")
+    private int poolTimeoutMillis;
+
+    @Value("${elasticsearch.client.maxConnTotal:100}")
+    private int maxConnTotal;
+
+    @Value("${elasticsearch.client.maxConnPerRoute:50}")
+    private int maxConnPerRoute;
+
+    /**
+     * 0 for one I/O thread per processor.
+     */
+    @Value("${elasticsearch.client.ioThreads:0}")
+    private int ioThreads;
+
+    /**
+     * Gzip of the request bodies, the bulk payloads shrink several times.
+     */
+    @Value("${elasticsearch.client.compression:true}")
+    private boolean compression;
+
+    @Value("${elasticsearch.sniffer.enabled:false}")
+    private boolean snifferEnabled;
+
+    @Value("${elasticsearch.sniffer.intervalMillis:300000}")
+    private int sniffIntervalMillis;
+
+    @Value("${elasticsearch.sniffer.delayAfterFailureMillis:60000}")
+    private int sniffAfterFailureDelayMillis;
+
+    private final SniffOnFailureListener sniffOnFailure = new SniffOnFailureListener();
+
     @Bean(destroyMethod = "close")
     public RestHighLevelClient esClient() {
-        log.info(String.format("Init elasticsearch client -> %s:%s", elasticsearchHost, elasticsearchPort));
-        return new RestHighLevelClient(RestClient.builder(
-                new HttpHost(elasticsearchHost, Integer.parseInt(elasticsearchPort), "http")));
+        HttpHost[] hosts = parseHosts();
+        log.info(String.format("Init elasticsearch client -> %s", Arrays.toString(hosts)));
+        RestClientBuilder builder = RestClient.builder(hosts)
+                .setNodeSelector(NodeSelector.SKIP_DEDICATED_MASTERS)
+                .setCompressionEnabled(compression)
+                .setRequestConfigCallback(config -> config
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(socketTimeoutMillis)
+                        .setConnectionRequestTimeout(poolTimeoutMillis))
+                .setHttpClientConfigCallback(client -> {
+                    client.setMaxConnTotal(maxConnTotal).setMaxConnPerRoute(maxConnPerRoute);
+                    if (ioThreads > 0) {
+                        client.setDefaultIOReactorConfig(IOReactorConfig.custom().setIoThreadCount(ioThreads).build());
+                    }
+                    return client;
+                });
+        if (snifferEnabled) {
+            builder.setFailureListener(sniffOnFailure);
+        }
+        return new RestHighLevelClient(builder);
+    }
+
+    /**
+     * Closed before the client, it depends on it.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "elasticsearch.sniffer.enabled", havingValue = "true")
+    public Sniffer esSniffer(RestHighLevelClient esClient) {
+        String scheme = parseHosts()[0].getSchemeName();
+        Sniffer sniffer = Sniffer.builder(esClient.getLowLevelClient())
+                .setSniffIntervalMillis(sniffIntervalMillis)
+                .setSniffAfterFailureDelayMillis(sniffAfterFailureDelayMillis)
+                .setNodesSniffer(new ElasticsearchNodesSniffer(esClient.getLowLevelClient(),
+                        TimeUnit.SECONDS.toMillis(1), ElasticsearchNodesSniffer.Scheme.valueOf(scheme.toUpperCase(Locale.ROOT))))
+                .build();
+        sniffOnFailure.setSniffer(sniffer);
+        log.info(String.format("Sniffing the elasticsearch nodes every %d ms", sniffIntervalMillis));
+        return sniffer;
+    }
+
+    private HttpHost[] parseHosts() {
+        int defaultPort = Integer.parseInt(elasticsearchPort);
+        return Arrays.stream(elasticsearchHost.split(","))
+                .map(String::trim)
+                .filter(host -> !host.isEmpty())
+                .map(HttpHost::create)
+                .map(host -> host.getPort() < 0 ? new HttpHost(host.getHostName(), defaultPort, host.getSchemeName()) : host)
+                .toArray(HttpHost[]::new);
     }
 
-}
\ No newline at end of file
+}
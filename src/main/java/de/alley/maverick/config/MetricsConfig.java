@@ -0,0 +1,72 @@
+package de.alley.maverick.config;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.DropboxGateway;
+import de.alley.maverick.services.ExpiringCache;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Binds the counters kept by the components themselves, the timers are recorded where the calls are made.
+ * Everything is exported on /actuator/prometheus.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder fileCacheMetrics(@Qualifier("fileCache") ExpiringCache<String, FileInfo> fileCache,
+                                        @Qualifier("missingFileCache") ExpiringCache<String, Boolean> missingFileCache) {
+        return registry -> {
+            bindCache(registry, "files", fileCache);
+            bindCache(registry, "missing", missingFileCache);
+        };
+    }
+
+    private static void bindCache(MeterRegistry registry, String name, ExpiringCache<?, ?> cache) {
+        Gauge.builder("cache.size", cache, ExpiringCache::size).tag("cache", name).register(registry);
+        FunctionCounter.builder("cache.gets", cache, ExpiringCache::getHits)
+                .tags("cache", name, "result", "hit").register(registry);
+        FunctionCounter.builder("cache.gets", cache, ExpiringCache::getMisses)
+                .tags("cache", name, "result", "miss").register(registry);
+        FunctionCounter.builder("cache.evictions", cache, ExpiringCache::getEvictions)
+                .tag("cache", name).register(registry);
+    }
+
+    @Bean
+    public MeterBinder dropboxGatewayMetrics(DropboxGateway gateway) {
+        return registry -> {
+            Gauge.builder("dropbox.gateway.limit", gateway, DropboxGateway::getLimit).register(registry);
+            FunctionCounter.builder("dropbox.gateway.throttles", gateway, DropboxGateway::getThrottles).register(registry);
+            FunctionCounter.builder("dropbox.gateway.retries", gateway, DropboxGateway::getRetries).register(registry);
+            FunctionCounter.builder("dropbox.gateway.failures", gateway, DropboxGateway::getFailures).register(registry);
+        };
+    }
+
+    /**
+     * Queue depth, active and completed tasks of the executor of the synchronization and the one of the lookups.
+     * The synchronization on virtual threads has no pool to observe.
+     */
+    @Bean
+    public MeterBinder taskExecutorMetrics(@Qualifier("threadPoolTaskExecutor") Executor executor,
+                                           @Qualifier("lookupTaskExecutor") ThreadPoolTaskExecutor lookupExecutor) {
+        return registry -> {
+            if (executor instanceof ThreadPoolTaskExecutor) {
+                new ExecutorServiceMetrics(((ThreadPoolTaskExecutor) executor).getThreadPoolExecutor(),
+                        "threadPoolTaskExecutor", Tags.empty()).bindTo(registry);
+            }
+            new ExecutorServiceMetrics(lookupExecutor.getThreadPoolExecutor(), "lookupTaskExecutor",
+                    Tags.empty()).bindTo(registry);
+        };
+    }
+
+}
@@ -1,23 +1,135 @@
 package de.alley.maverick.config;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Both executors are bounded: they grow from the core size to the max size only once the queue is full.
+ * A synchronization task beyond the queue runs on the caller, which slows the run down. A dropbox lookup of a
+ * request beyond the queue is rejected with a TaskRejectedException and answered with 503, as its caller may be
+ * an elasticsearch I/O thread. A discarding policy is not offered, a dropped lookup would leave its future
+ * incomplete forever.
+ * The synchronization and the crawler can run on virtual threads, they mostly wait on dropbox and elasticsearch.
+ * Then every synchronization task gets a virtual thread of its own, up to the max size, instead of a pooled one.
+ */
+@Slf4j
 @Configuration
 @EnableAsync
 public class SynchronizerConfig {
 
+    @Value("${synchronizer.executor.coreSize:8}")
+    private int coreSize;
+
+    @Value("${synchronizer.executor.maxSize:32}")
+    private int maxSize;
+
+    @Value("${synchronizer.executor.queueCapacity:500}")
+    private int queueCapacity;
+
+    @Value("${synchronizer.executor.awaitTerminationSeconds:30}")
+    private int awaitTerminationSeconds;
+
+    /**
+     * Only on a JDK with virtual threads, platform threads are used otherwise.
+     */
+    @Value("${synchronizer.executor.virtualThreads:false}")
+    private boolean virtualThreads;
+
+    @Value("${lookup.executor.coreSize:8}")
+    private int lookupCoreSize;
+
+    @Value("${lookup.executor.maxSize:32}")
+    private int lookupMaxSize;
+
+    @Value("${lookup.executor.queueCapacity:200}")
+    private int lookupQueueCapacity;
+
     @Bean("threadPoolTaskExecutor")
-    public TaskExecutor getAsyncExecutor() {
+    public AsyncTaskExecutor getAsyncExecutor(MeterRegistry meterRegistry) {
+        Optional<ThreadFactory> virtual = virtualThreadFactory("Async-");
+        if (virtual.isPresent()) {
+            // the callers wait beyond the max size, like the caller runs policy of the pool
+            SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(virtual.get());
+            executor.setConcurrencyLimit(maxSize);
+            return executor;
+        }
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
-        executor.setCorePoolSize(20);
-        executor.setMaxPoolSize(1000);
+        executor.setCorePoolSize(coreSize);
+        executor.setMaxPoolSize(maxSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setRejectedExecutionHandler(countingRejection(new ThreadPoolExecutor.CallerRunsPolicy(),
+                meterRegistry.counter("executor.rejected", "name", "threadPoolTaskExecutor")));
         executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(awaitTerminationSeconds);
         executor.setThreadNamePrefix("Async-");
         return executor;
     }
 
+    @Bean("lookupTaskExecutor")
+    public ThreadPoolTaskExecutor getLookupExecutor(MeterRegistry meterRegistry) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(lookupCoreSize);
+        executor.setMaxPoolSize(lookupMaxSize);
+        executor.setQueueCapacity(lookupQueueCapacity);
+        executor.setRejectedExecutionHandler(countingRejection(new ThreadPoolExecutor.AbortPolicy(),
+                meterRegistry.counter("executor.rejected", "name", "lookupTaskExecutor")));
+        executor.setThreadNamePrefix("Lookup-");
+        return executor;
+    }
+
+    @Bean("crawlerThreadFactory")
+    public ThreadFactory crawlerThreadFactory() {
+        return virtualThreadFactory("Crawler-").orElseGet(() -> new CustomizableThreadFactory("Crawler-"));
+    }
+
+    private Optional<ThreadFactory> virtualThreadFactory(String prefix) {
+        if (!virtualThreads) {
+            return Optional.empty();
+        }
+        Optional<ThreadFactory> virtual = lookupVirtualThreadFactory(prefix);
+        if (virtual.isPresent()) {
+            log.info(String.format("%s threads are virtual", prefix));
+        } else {
+            log.warn(String.format("Virtual threads are not available on java %s, %s threads are platform threads",
+                    Runtime.version(), prefix));
+        }
+        return virtual;
+    }
+
+    /**
+     * Thread.ofVirtual().name(prefix, 0).factory(), looked up at runtime as the code is compiled for java 11.
+     */
+    private static Optional<ThreadFactory> lookupVirtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return Optional.of((ThreadFactory) ofVirtual.getMethod("factory").invoke(builder));
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // missing before java 21, a disabled preview feature on java 19 and 20
+            return Optional.empty();
+        }
+    }
+
+    private static RejectedExecutionHandler countingRejection(RejectedExecutionHandler policy, Counter rejected) {
+        return (task, executor) -> {
+            rejected.increment();
+            policy.rejectedExecution(task, executor);
+        };
+    }
+
 }
@@ -0,0 +1,53 @@
+package de.alley.maverick.protocol;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.Map;
+
+/**
+ * A write of a file that elasticsearch has refused for good, parked for a replay.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DeadLetter {
+
+    public static final String CREATE = "create";
+    public static final String UPSERT = "upsert";
+    public static final String DELETE = "delete";
+
+    private String fileId;
+
+    /**
+     * One of create, upsert or delete.
+     */
+    private String operation;
+
+    /**
+     * The document of the write, none for a delete.
+     */
+    private Map<String, Object> document;
+
+    /**
+     * HTTP status of the last failure, 0 when elasticsearch was not reached.
+     */
+    private int status;
+
+    private String error;
+
+    /**
+     * ISO-8601 instant of the last failure.
+     */
+    private String failedAt;
+
+}
@@ -0,0 +1,32 @@
+package de.alley.maverick.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class DeadLetterReplay {
+
+    /**
+     * Number of writes applied and removed from the dead letters.
+     */
+    private int replayed;
+
+    /**
+     * The writes failed again, they stay parked with the new failure.
+     */
+    @Builder.Default
+    private List<DeadLetter> failed = new ArrayList<>();
+
+}
@@ -1,5 +1,6 @@
 package de.alley.maverick.protocol;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.EqualsAndHashCode;
@@ -22,6 +23,7 @@ import java.util.List;
 @Builder
 @EqualsAndHashCode(callSuper = false)
 @ToString
+@JsonIgnoreProperties(ignoreUnknown = true)  //the stamps of the synchronization stay in elasticsearch
 public class FileInfo /*extends RepresentationModel<FileInfo> */{
 
     @NotBlank
@@ -38,6 +40,9 @@ public class FileInfo /*extends RepresentationModel<FileInfo> */{
     @EqualsAndHashCode.Exclude
     private Long size;
 
+    @EqualsAndHashCode.Exclude
+    private String rev;
+
     @NotNull
     @EqualsAndHashCode.Exclude
     private List<String> tags;
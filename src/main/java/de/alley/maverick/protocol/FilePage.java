@@ -0,0 +1,35 @@
+package de.alley.maverick.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class FilePage {
+
+    private List<FileInfo> files;
+
+    /**
+     * Opaque position after the last file of the page, null on the last page.
+     */
+    private String nextCursor;
+
+    public List<FileInfo> getFiles() {
+        if (files == null) {
+            files = new ArrayList<>();
+        }
+        return files;
+    }
+
+}
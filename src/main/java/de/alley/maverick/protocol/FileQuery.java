@@ -0,0 +1,61 @@
+package de.alley.maverick.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class FileQuery {
+
+    /**
+     * String part of the name, all files when empty.
+     */
+    private String fileName;
+
+    /**
+     * The file has all of these tags.
+     */
+    private List<String> tags;
+
+    /**
+     * The file has at least one of these tags.
+     */
+    private List<String> anyTags;
+
+    /**
+     * The file has none of these tags.
+     */
+    private List<String> notTags;
+
+    public List<String> getTags() {
+        if (tags == null) {
+            tags = new ArrayList<>();
+        }
+        return tags;
+    }
+
+    public List<String> getAnyTags() {
+        if (anyTags == null) {
+            anyTags = new ArrayList<>();
+        }
+        return anyTags;
+    }
+
+    public List<String> getNotTags() {
+        if (notTags == null) {
+            notTags = new ArrayList<>();
+        }
+        return notTags;
+    }
+}
@@ -0,0 +1,31 @@
+package de.alley.maverick.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class TagBatchForm {
+
+    @NotNull
+    private List<TagOperationForm> operations;
+
+    public List<TagOperationForm> getOperations() {
+        if (operations == null) {
+            operations = new ArrayList<>();
+        }
+        return operations;
+    }
+}
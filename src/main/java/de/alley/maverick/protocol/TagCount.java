@@ -0,0 +1,25 @@
+package de.alley.maverick.protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class TagCount {
+
+    private String tag;
+
+    /**
+     * Number of matching files with the tag.
+     */
+    private long count;
+
+}
@@ -0,0 +1,39 @@
+package de.alley.maverick.protocol;
+
+import de.alley.maverick.repositories.Mode;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.List;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+public class TagOperationForm {
+
+    @NotBlank
+    private String fileId;
+
+    @NotNull
+    private Mode mode;
+
+    @NotNull
+    private List<String> tags;
+
+    public List<String> getTags() {
+        if (tags == null) {
+            tags = new ArrayList<>();
+        }
+        return tags;
+    }
+}
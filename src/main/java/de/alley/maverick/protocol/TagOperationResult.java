@@ -0,0 +1,34 @@
+package de.alley.maverick.protocol;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+@NoArgsConstructor
+@AllArgsConstructor
+@Getter
+@Setter
+@Builder
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class TagOperationResult {
+
+    private String fileId;
+
+    /**
+     * HTTP status of the single operation.
+     */
+    private int status;
+
+    private String error;
+
+    /**
+     * The file after the operation, only when it has succeeded.
+     */
+    private FileInfo file;
+
+}
@@ -0,0 +1,44 @@
+package de.alley.maverick.repositories;
+
+import de.alley.maverick.protocol.FileInfo;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+@Builder
+@ToString
+public class DropboxChanges {
+
+    /**
+     * Files added or modified since the cursor, in the order of the listing.
+     */
+    @Builder.Default
+    private final List<FileInfo> files = new ArrayList<>();
+
+    /**
+     * Lower-cased paths removed since the cursor. A deleted folder implies all of its children.
+     */
+    @Builder.Default
+    private final List<String> deletedPaths = new ArrayList<>();
+
+    /**
+     * The cursor to continue from on the next synchronization.
+     */
+    private final String cursor;
+
+    /**
+     * Dropbox has invalidated the cursor, a full listing is required.
+     */
+    private final boolean reset;
+
+    public static DropboxChanges reset() {
+        return DropboxChanges.builder().reset(true).build();
+    }
+
+}
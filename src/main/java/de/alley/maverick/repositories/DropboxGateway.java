@@ -0,0 +1,219 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.RetryException;
+import com.dropbox.core.ServerException;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared entry point of all dropbox calls.
+ * The number of calls in flight follows AIMD: the limit grows by one per window of successful calls and is
+ * halved on every rate limit, down to one call at a time. A rate limit also pauses every caller for the
+ * backoff given by dropbox. The other transient errors are retried with a jittered exponential backoff.
+ */
+@Slf4j
+@Component
+public class DropboxGateway {
+
+    @FunctionalInterface
+    public interface DropboxCall<T> {
+        T call() throws DbxException;
+    }
+
+    private final int maxConcurrency;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final long maxBackoffMillis;
+    private final RepositoryMetrics metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public DropboxGateway(@Value("${dropbox.gateway.maxConcurrency:8}") int maxConcurrency,
+                          @Value("${dropbox.gateway.maxAttempts:5}") int maxAttempts,
+                          @Value("${dropbox.gateway.backoffMillis:200}") long backoffMillis,
+                          @Value("${dropbox.gateway.maxBackoffMillis:10000}") long maxBackoffMillis,
+                          RepositoryMetrics metrics) {
+        this.maxConcurrency = maxConcurrency;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.metrics = metrics;
+        this.limit = maxConcurrency;
+    }
+
+    /**
+     * The call is timed as the operation, with all of its attempts.
+     *
+     * @throws DbxException the error of the last attempt, when it is not transient or the attempts are exhausted
+     */
+    public <T> T execute(String operation, DropboxCall<T> call) throws DbxException {
+        Timer.Sample sample = metrics.start();
+        Throwable failure = null;
+        try {
+            return attempt(call);
+        } catch (DbxException | RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            metrics.stop(sample, RepositoryMetrics.DROPBOX, operation, failure);
+        }
+    }
+
+    private enum Outcome {
+        SUCCESS, THROTTLED, FAILED
+    }
+
+    /**
+     * The slot is released before the backoff, so a sleeping retry does not hold back the other callers.
+     */
+    private <T> T attempt(DropboxCall<T> call) throws DbxException {
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            Outcome outcome = Outcome.FAILED;
+            DbxException failure;
+            long sleepMillis;
+            try {
+                calls.incrementAndGet();
+                T result = call.call();
+                outcome = Outcome.SUCCESS;
+                return result;
+            } catch (RateLimitException ex) {
+                outcome = Outcome.THROTTLED;
+                throttles.incrementAndGet();
+                pause(ex.getBackoffMillis());
+                failure = ex;
+                sleepMillis = 0;  //the pause holds back every caller
+            } catch (RetryException ex) {
+                failure = ex;
+                sleepMillis = Math.max(ex.getBackoffMillis(), jitteredBackoff(attempt));
+            } catch (ServerException | NetworkIOException ex) {
+                failure = ex;
+                sleepMillis = jitteredBackoff(attempt);
+            } finally {
+                release(outcome);
+            }
+            retryOrThrow(failure, attempt, sleepMillis);
+        }
+    }
+
+    private void retryOrThrow(DbxException ex, int attempt, long sleepMillis) throws DbxException {
+        if (attempt >= maxAttempts) {
+            failures.incrementAndGet();
+            log.warn(String.format("Dropbox call failed after %d attempts, %s", attempt, ex.getMessage()));
+            throw ex;
+        }
+        retries.incrementAndGet();
+        log.debug(String.format("Dropbox call is retried in %d ms, %s", sleepMillis, ex.getMessage()));
+        if (sleepMillis > 0) {
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Critical error in dropbox", ie);
+            }
+        }
+    }
+
+    /**
+     * Full jitter, so the callers failing together do not retry together.
+     */
+    private long jitteredBackoff(int attempt) {
+        long cap = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    private void acquire() {
+        lock.lock();
+        try {
+            while (true) {
+                long pause = pausedUntil - System.currentTimeMillis();
+                if (pause > 0) {
+                    released.await(pause, TimeUnit.MILLISECONDS);
+                } else if (inFlight < (int) limit) {
+                    inFlight++;
+                    return;
+                } else {
+                    released.await();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Critical error in dropbox", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only the rate limits and the successful calls move the limit, the other errors say nothing about the load.
+     */
+    private void release(Outcome outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            if (outcome == Outcome.THROTTLED) {
+                limit = Math.max(1, limit / 2);
+            } else if (outcome == Outcome.SUCCESS) {
+                limit = Math.min(maxConcurrency, limit + 1 / limit);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pause(long millis) {
+        lock.lock();
+        try {
+            pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + millis);
+            log.info(String.format("Dropbox rate limit, the calls are paused for %d ms", millis));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+}
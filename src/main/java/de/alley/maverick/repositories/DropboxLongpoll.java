@@ -0,0 +1,33 @@
+package de.alley.maverick.repositories;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+@AllArgsConstructor
+@Getter
+@Builder
+@ToString
+public class DropboxLongpoll {
+
+    /**
+     * Something has changed after the cursor, the changes are read with the same cursor.
+     */
+    private final boolean changes;
+
+    /**
+     * Dropbox asks to wait so long before the next longpoll.
+     */
+    private final long backoffSeconds;
+
+    /**
+     * Dropbox has invalidated the cursor, the next synchronization falls back to a full listing.
+     */
+    private final boolean reset;
+
+    public static DropboxLongpoll reset() {
+        return DropboxLongpoll.builder().reset(true).build();
+    }
+
+}
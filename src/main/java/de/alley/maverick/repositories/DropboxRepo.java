@@ -2,36 +2,54 @@ package de.alley.maverick.repositories;
 
 import com.dropbox.core.DbxException;
 import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.DeletedMetadata;
 import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.FolderMetadata;
 import com.dropbox.core.v2.files.GetMetadataErrorException;
-import com.dropbox.core.v2.files.ListFolderBuilder;
+import com.dropbox.core.v2.files.ListFolderContinueErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollError;
+import com.dropbox.core.v2.files.ListFolderLongpollErrorException;
+import com.dropbox.core.v2.files.ListFolderLongpollResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.Metadata;
-import com.dropbox.core.v2.files.SearchMatchV2;
-import com.dropbox.core.v2.files.SearchV2Result;
 import de.alley.maverick.protocol.FileInfo;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Repository;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Slf4j
 @Repository
 public class DropboxRepo {
 
     private final DbxClientV2 dbClient;
+    private final DbxClientV2 dbLongpollClient;
+    private final DropboxGateway gateway;
 
     @Autowired
-    public DropboxRepo(DbxClientV2 dbClient) {
+    public DropboxRepo(DbxClientV2 dbClient, @Qualifier("dbLongpollClient") DbxClientV2 dbLongpollClient,
+                       DropboxGateway gateway) {
         this.dbClient = dbClient;
+        this.dbLongpollClient = dbLongpollClient;
+        this.gateway = gateway;
     }
 
     public Optional<FileInfo> findDropboxFileById(String fileId) {
         try {
-            FileMetadata actual = (FileMetadata) dbClient.files().getMetadata(fileId);
+            FileMetadata actual = (FileMetadata) gateway.execute("getMetadata", () -> dbClient.files().getMetadata(fileId));
             return Optional.ofNullable(FileInfoMapper.map(actual));
         } catch (GetMetadataErrorException e) {
             log.warn(String.format("Cannot find the file %s from dropbox", fileId));
@@ -42,53 +60,149 @@ public class DropboxRepo {
         }
     }
 
-    public List<FileInfo> findDropboxFilesByName(String fileName) {
+    public List<FileInfo> findDropboxFilesByName(String fileName, int maxResults) {
+        return searchDropboxFiles(DropboxSearch.byName(fileName, maxResults)).collect(Collectors.toList());
+    }
+
+    /**
+     * The matching files are pulled from dropbox page by page while the stream is consumed,
+     * at most the max results of the search.
+     */
+    public Stream<FileInfo> searchDropboxFiles(DropboxSearch search) {
+        Iterator<FileInfo> files = new DropboxSearchIterator(dbClient, gateway, search);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(files, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .limit(search.getMaxResults());
+    }
+
+    /**
+     * The cursor of the whole account at this moment, without listing anything.
+     */
+    public String findLatestCursor() {
         try {
-            SearchV2Result result = dbClient.files().searchV2(fileName);
-            List<SearchMatchV2> matches = result.getMatches();
-            List<FileInfo> founded = new ArrayList<>();
-            for (SearchMatchV2 match : matches) {
-                Metadata metadata = match.getMetadata().getMetadataValue();
-                if (metadata instanceof FileMetadata) {
-                    founded.add(FileInfoMapper.map((FileMetadata) metadata));
+            return gateway.execute("getLatestCursor", () -> dbClient.files().listFolderGetLatestCursorBuilder("").withRecursive(true).start())
+                    .getCursor();
+        } catch (DbxException e) {
+            log.warn("Cannot get the latest cursor from dropbox");
+            throw new IllegalStateException("Critical error in dropbox", e);
+        }
+    }
+
+    /**
+     * Lists the root folder only.
+     *
+     * @return the paths of the top level folders, the files of the root go to the consumer
+     */
+    public List<String> findRootFolders(Consumer<FileInfo> consumer) {
+        List<String> folders = new ArrayList<>();
+        try {
+            ListFolderResult page = gateway.execute("listFolder", () -> dbClient.files().listFolder(""));
+            while (true) {
+                for (Metadata entry : page.getEntries()) {
+                    if (entry instanceof FileMetadata) {
+                        consumer.accept(FileInfoMapper.map((FileMetadata) entry));
+                    } else if (entry instanceof FolderMetadata) {
+                        folders.add(entry.getPathLower());
+                    }
+                }
+                if (!page.getHasMore()) {
+                    return folders;
                 }
+                String next = page.getCursor();
+                page = gateway.execute("listFolderContinue", () -> dbClient.files().listFolderContinue(next));
             }
-            return founded;
-        } catch (GetMetadataErrorException e) {
-            log.warn(String.format("Cannot find the file %s from dropbox", fileName));
-            return new ArrayList<>();
         } catch (DbxException e) {
-            log.warn(String.format("Cannot get the file %s from dropbox", fileName));
+            log.warn("Cannot get the root folder from dropbox");
             throw new IllegalStateException("Critical error in dropbox", e);
         }
     }
 
-    public List<FileInfo> findAllDropboxFiles() {
+    /**
+     * Streams every file under the path page by page, nothing is accumulated.
+     */
+    public void findAllDropboxFiles(String path, Consumer<FileInfo> consumer) {
         try {
-            List<FileInfo> result = new ArrayList<>();
-            ListFolderBuilder listFolderBuilder = dbClient.files().listFolderBuilder("");
-            ListFolderResult cursor = listFolderBuilder.withRecursive(true).start();
+            ListFolderResult page = gateway.execute("listFolder", () -> dbClient.files().listFolderBuilder(path).withRecursive(true).start());
             while (true) {
-                if (cursor != null) {
-                    for (Metadata entry : cursor.getEntries()) {
-                        if (entry instanceof FileMetadata) {
-                            FileMetadata meta = (FileMetadata) entry;
-                            log.debug(String.format("Found in dropbox file: %s:%s", meta.getId(), meta.getPathLower()));
-                            result.add(FileInfoMapper.map(meta));
-                        }
-                    }
-                    if (!cursor.getHasMore()) {
-                        return result;
+                for (Metadata entry : page.getEntries()) {
+                    if (entry instanceof FileMetadata) {
+                        FileMetadata meta = (FileMetadata) entry;
+                        log.debug(String.format("Found in dropbox file: %s:%s", meta.getId(), meta.getPathLower()));
+                        consumer.accept(FileInfoMapper.map(meta));
                     }
-                    try {
-                        cursor = dbClient.files().listFolderContinue(cursor.getCursor());
-                    } catch (DbxException e) {
-                        log.info("Couldn't get listFolderContinue");
+                }
+                if (!page.getHasMore()) {
+                    return;
+                }
+                String next = page.getCursor();
+                page = gateway.execute("listFolderContinue", () -> dbClient.files().listFolderContinue(next));
+            }
+        } catch (DbxException e) {
+            log.warn(String.format("Cannot get all files of %s from dropbox", path));
+            throw new IllegalStateException("Critical error in dropbox", e);
+        }
+    }
+
+    public DropboxChanges findDropboxChanges(String cursor) {
+        // keyed by path, so a later deletion of the same path (or of its folder) drops the earlier change
+        Map<String, FileInfo> changed = new LinkedHashMap<>();
+        List<String> deletedPaths = new ArrayList<>();
+        try {
+            ListFolderResult page;
+            do {
+                String next = cursor;
+                page = gateway.execute("listFolderContinue", () -> dbClient.files().listFolderContinue(next));
+                for (Metadata entry : page.getEntries()) {
+                    if (entry instanceof FileMetadata) {
+                        FileMetadata meta = (FileMetadata) entry;
+                        log.debug(String.format("Changed in dropbox file: %s:%s", meta.getId(), meta.getPathLower()));
+                        changed.put(meta.getPathLower(), FileInfoMapper.map(meta));
+                    } else if (entry instanceof DeletedMetadata) {
+                        String deleted = entry.getPathLower();
+                        log.debug(String.format("Deleted in dropbox: %s", deleted));
+                        changed.keySet().removeIf(path -> path.equals(deleted) || path.startsWith(deleted + "/"));
+                        deletedPaths.add(deleted);
                     }
                 }
+                cursor = page.getCursor();
+            } while (page.getHasMore());
+            return DropboxChanges.builder()
+                    .files(new ArrayList<>(changed.values()))
+                    .deletedPaths(deletedPaths)
+                    .cursor(cursor)
+                    .build();
+        } catch (ListFolderContinueErrorException e) {
+            if (e.errorValue.isReset()) {
+                log.warn("The dropbox cursor has been reset, a full synchronization is required");
+                return DropboxChanges.reset();
+            }
+            log.warn("Cannot get the changes from dropbox");
+            throw new IllegalStateException("Critical error in dropbox", e);
+        } catch (DbxException e) {
+            log.warn("Cannot get the changes from dropbox");
+            throw new IllegalStateException("Critical error in dropbox", e);
+        }
+    }
+
+    /**
+     * Blocks until something changes after the cursor or the timeout passes.
+     * It is not counted by the gateway, a longpoll is idle on the dropbox side and would hold a slot for minutes.
+     */
+    public DropboxLongpoll waitForDropboxChanges(String cursor, long timeoutSeconds) {
+        try {
+            ListFolderLongpollResult result = dbLongpollClient.files().listFolderLongpoll(cursor, timeoutSeconds);
+            return DropboxLongpoll.builder()
+                    .changes(result.getChanges())
+                    .backoffSeconds(result.getBackoff() == null ? 0 : result.getBackoff())
+                    .build();
+        } catch (ListFolderLongpollErrorException e) {
+            if (e.errorValue == ListFolderLongpollError.RESET) {
+                log.warn("The dropbox cursor has been reset, a full synchronization is required");
+                return DropboxLongpoll.reset();
             }
+            log.warn("Cannot wait for the changes in dropbox");
+            throw new IllegalStateException("Critical error in dropbox", e);
         } catch (DbxException e) {
-            log.warn("Cannot get all files from dropbox");
+            log.warn("Cannot wait for the changes in dropbox");
             throw new IllegalStateException("Critical error in dropbox", e);
         }
     }
@@ -0,0 +1,48 @@
+package de.alley.maverick.repositories;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@AllArgsConstructor
+@Getter
+@Builder
+@ToString
+public class DropboxSearch {
+
+    /**
+     * Dropbox does not return more matches per page.
+     */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Matched against the file names only, not the content.
+     */
+    private final String fileName;
+
+    /**
+     * The folder to search in, the whole account when it is not set.
+     */
+    private final String path;
+
+    /**
+     * Extensions without the dot, any extension when it is empty.
+     */
+    @Builder.Default
+    private final List<String> fileExtensions = new ArrayList<>();
+
+    /**
+     * No more pages are pulled from dropbox once so many files have been returned.
+     */
+    @Builder.Default
+    private final int maxResults = 100;
+
+    public static DropboxSearch byName(String fileName, int maxResults) {
+        return DropboxSearch.builder().fileName(fileName).maxResults(maxResults).build();
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.dropbox.core.v2.files.SearchErrorException;
+import com.dropbox.core.v2.files.SearchMatchV2;
+import com.dropbox.core.v2.files.SearchOptions;
+import com.dropbox.core.v2.files.SearchV2Result;
+import de.alley.maverick.protocol.FileInfo;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The files matching a dropbox search, the next page is pulled with the search cursor only when
+ * the matches of the current one are consumed.
+ */
+@Slf4j
+class DropboxSearchIterator implements Iterator<FileInfo> {
+
+    private final DbxClientV2 dbClient;
+    private final DropboxGateway gateway;
+    private final DropboxSearch search;
+
+    private Iterator<SearchMatchV2> matches = Collections.emptyIterator();
+    private String cursor;
+    private boolean started;
+    private boolean hasMore = true;
+    private FileInfo next;
+
+    DropboxSearchIterator(DbxClientV2 dbClient, DropboxGateway gateway, DropboxSearch search) {
+        this.dbClient = dbClient;
+        this.gateway = gateway;
+        this.search = search;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (matches.hasNext()) {
+                SearchMatchV2 match = matches.next();
+                if (match.getMetadata().isMetadata() && match.getMetadata().getMetadataValue() instanceof FileMetadata) {
+                    next = FileInfoMapper.map((FileMetadata) match.getMetadata().getMetadataValue());
+                }
+            } else if (hasMore) {
+                fetch();
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public FileInfo next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        FileInfo current = next;
+        next = null;
+        return current;
+    }
+
+    private void fetch() {
+        try {
+            SearchV2Result page;
+            if (started) {
+                String continueFrom = cursor;
+                page = gateway.execute("searchContinue", () -> dbClient.files().searchContinueV2(continueFrom));
+            } else {
+                page = gateway.execute("search", () -> dbClient.files().searchV2Builder(search.getFileName())
+                        .withOptions(toSearchOptions())
+                        .start());
+                started = true;
+            }
+            matches = page.getMatches().iterator();
+            cursor = page.getCursor();
+            hasMore = page.getHasMore() && cursor != null;
+        } catch (SearchErrorException e) {
+            log.warn(String.format("Cannot search the files %s in dropbox, %s", search.getFileName(), e.errorValue));
+            hasMore = false;
+        } catch (DbxException e) {
+            log.warn(String.format("Cannot get the files %s from dropbox", search.getFileName()));
+            throw new IllegalStateException("Critical error in dropbox", e);
+        }
+    }
+
+    private SearchOptions toSearchOptions() {
+        SearchOptions.Builder options = SearchOptions.newBuilder()
+                .withFilenameOnly(true)
+                .withMaxResults((long) Math.min(search.getMaxResults(), DropboxSearch.MAX_PAGE_SIZE));
+        if (search.getPath() != null && !search.getPath().isEmpty()) {
+            options.withPath(search.getPath());
+        }
+        if (!search.getFileExtensions().isEmpty()) {
+            options.withFileExtensions(search.getFileExtensions());
+        }
+        return options.build();
+    }
+
+}
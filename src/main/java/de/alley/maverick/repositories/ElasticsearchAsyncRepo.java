@@ -0,0 +1,140 @@
+package de.alley.maverick.repositories;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.FilePage;
+import de.alley.maverick.protocol.FileQuery;
+import de.alley.maverick.protocol.TagCount;
+import de.alley.maverick.protocol.TagOperationForm;
+import de.alley.maverick.protocol.TagOperationResult;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.GetSourceRequest;
+import org.elasticsearch.client.core.GetSourceResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking access to the files index for the request path.
+ * The requests and the responses are built by {@link ElasticsearchRepo}. The futures are completed on the
+ * I/O threads of the elasticsearch client, the continuations of the callers must not block.
+ */
+@Slf4j
+@Repository
+public class ElasticsearchAsyncRepo {
+
+    private final RestHighLevelClient esClient;
+    private final ElasticsearchRepo esRepo;
+    private final RepositoryMetrics metrics;
+
+    @Autowired
+    public ElasticsearchAsyncRepo(RestHighLevelClient esClient, ElasticsearchRepo esRepo, RepositoryMetrics metrics) {
+        this.esClient = esClient;
+        this.esRepo = esRepo;
+        this.metrics = metrics;
+    }
+
+    public CompletableFuture<Optional<FileInfo>> findElasticsearchRecordById(String fileId) {
+        GetSourceRequest request = new GetSourceRequest(ElasticsearchRepo.INDEX_NAME, fileId);
+        return this.<GetSourceResponse>execute("get", l -> esClient.getSourceAsync(request, RequestOptions.DEFAULT, l))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return Optional.of(esRepo.toFileInfo(response.getSource()));
+                    }
+                    Throwable cause = unwrap(ex);
+                    if (cause instanceof ElasticsearchStatusException) {
+                        log.warn(String.format("Cannot find the file %s in elasticsearch, %s", fileId, cause.getMessage()));
+                        return Optional.empty();
+                    }
+                    log.warn(String.format("Something wrong with the file %s in elasticsearch", fileId));
+                    throw new IllegalStateException("Critical error in elasticsearch", cause);
+                });
+    }
+
+    public CompletableFuture<Optional<FileInfo>> updateElasticsearchRecord(String fileId, List<String> tags, Mode mode) {
+        UpdateRequest request = esRepo.prepareTagsUpdateRequest(fileId, tags, mode);
+        request.setRefreshPolicy(esRepo.getInteractiveRefresh());
+        return this.<UpdateResponse>execute("update", l -> esClient.updateAsync(request, RequestOptions.DEFAULT, l))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        log.debug(String.format("response after elasticsearch update %s", response.toString()));
+                        return Optional.of(esRepo.toFileInfo(response.getGetResult().sourceAsMap()));
+                    }
+                    Throwable cause = unwrap(ex);
+                    if (cause instanceof ElasticsearchStatusException
+                            && ((ElasticsearchStatusException) cause).status() == RestStatus.NOT_FOUND) {
+                        log.warn(String.format("Cannot find the file %s in elasticsearch, %s", fileId, cause.getMessage()));
+                        return Optional.empty();
+                    }
+                    log.warn(String.format("Cannot update the file %s in elasticsearch", fileId));
+                    throw new IllegalStateException("Critical error in elasticsearch", cause);
+                });
+    }
+
+    /**
+     * Applies all tag operations in one bulk request, refreshed once.
+     */
+    public CompletableFuture<List<TagOperationResult>> updateElasticsearchRecords(List<TagOperationForm> operations) {
+        BulkRequest request = esRepo.prepareTagsBulkRequest(operations);
+        return this.<BulkResponse>execute("bulk", l -> esClient.bulkAsync(request, RequestOptions.DEFAULT, l))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return esRepo.toTagOperationResults(response);
+                    }
+                    log.warn(String.format("Cannot update the tags of %d files in elasticsearch", operations.size()));
+                    throw new IllegalStateException("Critical error in elasticsearch", unwrap(ex));
+                });
+    }
+
+    /**
+     * @throws IllegalArgumentException when the cursor is not valid, before anything is sent
+     */
+    public CompletableFuture<FilePage> findByQuery(FileQuery fileQuery, int limit, String cursor) {
+        SearchRequest request = esRepo.prepareSearchRequest(fileQuery, limit, cursor);
+        return this.<SearchResponse>execute("search", l -> esClient.searchAsync(request, RequestOptions.DEFAULT, l))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return esRepo.toFilePage(response, limit);
+                    }
+                    log.warn(String.format("Cannot find the files %s in elasticsearch", fileQuery));
+                    throw new IllegalStateException("Critical error in elasticsearch", unwrap(ex));
+                });
+    }
+
+    public CompletableFuture<List<TagCount>> countTags(FileQuery fileQuery, int size) {
+        SearchRequest request = esRepo.prepareTagCountRequest(fileQuery, size);
+        return this.<SearchResponse>execute("aggregate", l -> esClient.searchAsync(request, RequestOptions.DEFAULT, l))
+                .handle((response, ex) -> {
+                    if (ex == null) {
+                        return esRepo.toTagCounts(response);
+                    }
+                    log.warn(String.format("Cannot count the tags of %s in elasticsearch", fileQuery));
+                    throw new IllegalStateException("Critical error in elasticsearch", unwrap(ex));
+                });
+    }
+
+    private <T> CompletableFuture<T> execute(String operation, Consumer<ActionListener<T>> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        call.accept(metrics.elasticsearch(operation, ActionListener.wrap(future::complete, future::completeExceptionally)));
+        return future;
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+}
@@ -0,0 +1,121 @@
+package de.alley.maverick.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.alley.maverick.protocol.DeadLetter;
+import io.micrometer.core.instrument.Counter;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * The writes of files refused by elasticsearch for good, kept in an index of their own until they are replayed.
+ * The documents are stored as sent and never indexed, so a document refused by the mapping of the files
+ * index is still accepted here. A file has at most one dead letter, the last failed write.
+ */
+@Slf4j
+@Repository
+public class ElasticsearchDeadLetterRepo {
+
+    static final String DEAD_LETTER_INDEX_NAME = "files-dead-letter";
+    private static final String FAILED_AT_FIELD_NAME = "failedAt";
+
+    private final RestHighLevelClient esClient;
+    private final ObjectMapper objectMapper;
+    private final RepositoryMetrics metrics;
+    private final Counter parked;
+
+    @Autowired
+    public ElasticsearchDeadLetterRepo(RestHighLevelClient esClient, ObjectMapper objectMapper,
+                                       RepositoryMetrics metrics) {
+        this.esClient = esClient;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.parked = metrics.getRegistry().counter("elasticsearch.deadletters");
+    }
+
+    /**
+     * Called from the bulk listeners, which run on the I/O threads of the client, so it neither blocks nor throws.
+     * The letters are sent without waiting for a refresh and the ones which cannot be parked are only logged.
+     */
+    public void park(List<DeadLetter> letters) {
+        if (letters.isEmpty()) {
+            return;
+        }
+        parked.increment(letters.size());
+        try {
+            BulkRequest bulkRequest = new BulkRequest();
+            letters.forEach(letter -> bulkRequest.add(new IndexRequest(DEAD_LETTER_INDEX_NAME)
+                    .id(letter.getFileId())
+                    .source(objectMapper.convertValue(letter, Map.class))));
+            esClient.bulkAsync(bulkRequest, RequestOptions.DEFAULT, metrics.elasticsearch("bulk",
+                    ActionListener.<BulkResponse>wrap(response -> {
+                        if (response.hasFailures()) {
+                            log.warn(String.format("Cannot park some of the failed files, %s", response.buildFailureMessage()));
+                        } else {
+                            log.warn(String.format("%d failed files are parked in %s", letters.size(), DEAD_LETTER_INDEX_NAME));
+                        }
+                    }, ex -> log.warn(String.format("Cannot park the failed files %s in elasticsearch", letters), ex))));
+        } catch (RuntimeException ex) {
+            log.warn(String.format("Cannot park the failed files %s in elasticsearch", letters), ex);
+        }
+    }
+
+    /**
+     * @return the oldest dead letters first
+     */
+    public List<DeadLetter> findDeadLetters(int limit) {
+        try {
+            SearchSourceBuilder scb = new SearchSourceBuilder();
+            scb.size(limit);
+            scb.timeout(new TimeValue(5, TimeUnit.SECONDS));
+            scb.query(QueryBuilders.matchAllQuery());
+            scb.sort(FAILED_AT_FIELD_NAME, SortOrder.ASC);
+            SearchRequest request = new SearchRequest(DEAD_LETTER_INDEX_NAME).source(scb);
+            SearchResponse response = metrics.elasticsearch("search", () -> esClient.search(request, RequestOptions.DEFAULT));
+            return Arrays.stream(response.getHits().getHits())
+                    .map(hit -> objectMapper.convertValue(hit.getSourceAsMap(), DeadLetter.class))
+                    .collect(Collectors.toList());
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn("Cannot find the dead letters in elasticsearch");
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    public void remove(Collection<String> fileIds) {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        try {
+            BulkRequest bulkRequest = new BulkRequest();
+            bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);  //the next replay must not see them
+            fileIds.forEach(id -> bulkRequest.add(new DeleteRequest(DEAD_LETTER_INDEX_NAME, id)));
+            metrics.elasticsearch("bulk", () -> esClient.bulk(bulkRequest, RequestOptions.DEFAULT));
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot remove the dead letters %s in elasticsearch", fileIds));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package de.alley.maverick.repositories;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.admin.cluster.storedscripts.PutStoredScriptRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.ReindexRequest;
+import org.elasticsearch.script.Script;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Repository;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bootstraps the files index with its explicit mapping.
+ * The mapping lives in a versioned index behind the files alias. When the version changes, or when the
+ * files index was created by dynamic mapping, the documents are reindexed and the alias is switched over.
+ * The stored scripts of the tag modes are registered along with it, and the index of the dead letters is
+ * created when it is missing.
+ */
+@Slf4j
+@Repository
+public class ElasticsearchIndexRepo {
+
+    static final int INDEX_VERSION = 5;
+    private static final String INDEX_SOURCE = "elasticsearch/files-index.json";
+    private static final String DEAD_LETTER_INDEX_SOURCE = "elasticsearch/dead-letter-index.json";
+    private static final String SCRIPT_SOURCE = "elasticsearch/scripts/%s.painless";
+
+    private final RestHighLevelClient esClient;
+
+    private volatile boolean initialized;
+
+    @Autowired
+    public ElasticsearchIndexRepo(RestHighLevelClient esClient) {
+        this.esClient = esClient;
+    }
+
+    public synchronized void initIndex() {
+        if (initialized) {
+            return;
+        }
+        String target = ElasticsearchRepo.INDEX_NAME + "-v" + INDEX_VERSION;
+        try {
+            if (!esClient.indices().exists(new GetIndexRequest(target), RequestOptions.DEFAULT)) {
+                createIndex(target, INDEX_SOURCE);
+            }
+            String deadLetters = ElasticsearchDeadLetterRepo.DEAD_LETTER_INDEX_NAME;
+            if (!esClient.indices().exists(new GetIndexRequest(deadLetters), RequestOptions.DEFAULT)) {
+                createIndex(deadLetters, DEAD_LETTER_INDEX_SOURCE);
+            }
+            List<String> sources = findPreviousIndices(target);
+            if (!sources.isEmpty()) {
+                reindex(sources, target);
+            }
+            IndicesAliasesRequest request = new IndicesAliasesRequest();
+            request.addAliasAction(IndicesAliasesRequest.AliasActions.add()
+                    .index(target).alias(ElasticsearchRepo.INDEX_NAME));
+            // dropping the previous indices in the same request switches the alias atomically
+            sources.forEach(source -> request.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex()
+                    .index(source)));
+            esClient.indices().updateAliases(request, RequestOptions.DEFAULT);
+            resetRefreshInterval(target);
+            putScripts();
+            initialized = true;
+            log.info(String.format("Index %s is ready behind %s", target, ElasticsearchRepo.INDEX_NAME));
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot initialize the index %s in elasticsearch", target));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    /**
+     * A bulk load interrupted by a crash leaves its refresh interval behind, the default of the index is restored.
+     */
+    private void resetRefreshInterval(String index) throws IOException {
+        UpdateSettingsRequest request = new UpdateSettingsRequest(index)
+                .settings(Settings.builder().putNull(ElasticsearchRepo.REFRESH_INTERVAL_SETTING));
+        esClient.indices().putSettings(request, RequestOptions.DEFAULT);
+    }
+
+    /**
+     * The tag modes are applied in elasticsearch by stored scripts, always overwritten with the current ones.
+     */
+    private void putScripts() throws IOException {
+        for (Mode mode : Mode.values()) {
+            String source = StreamUtils.copyToString(new ClassPathResource(
+                    String.format(SCRIPT_SOURCE, mode.getScriptId())).getInputStream(), StandardCharsets.UTF_8);
+            XContentBuilder content = XContentFactory.jsonBuilder()
+                    .startObject()
+                        .startObject("script")
+                            .field("lang", Script.DEFAULT_SCRIPT_LANG)
+                            .field("source", source)
+                        .endObject()
+                    .endObject();
+            PutStoredScriptRequest request = new PutStoredScriptRequest()
+                    .id(mode.getScriptId())
+                    .content(BytesReference.bytes(content), XContentType.JSON);
+            esClient.putScript(request, RequestOptions.DEFAULT);
+        }
+        log.info("Stored scripts are ready");
+    }
+
+    private void createIndex(String index, String mapping) throws IOException {
+        String source = StreamUtils.copyToString(new ClassPathResource(mapping).getInputStream(),
+                StandardCharsets.UTF_8);
+        CreateIndexRequest request = new CreateIndexRequest(index);
+        request.source(source, XContentType.JSON);
+        esClient.indices().create(request, RequestOptions.DEFAULT);
+        log.info(String.format("Index %s is created", index));
+    }
+
+    /**
+     * Older versioned indices behind the alias, or the index created by dynamic mapping.
+     */
+    private List<String> findPreviousIndices(String target) throws IOException {
+        List<String> previous = new ArrayList<>();
+        GetAliasesRequest aliasesRequest = new GetAliasesRequest(ElasticsearchRepo.INDEX_NAME);
+        if (esClient.indices().existsAlias(aliasesRequest, RequestOptions.DEFAULT)) {
+            esClient.indices().getAlias(aliasesRequest, RequestOptions.DEFAULT).getAliases().keySet().stream()
+                    .filter(index -> !index.equals(target))
+                    .forEach(previous::add);
+        } else if (esClient.indices().exists(new GetIndexRequest(ElasticsearchRepo.INDEX_NAME), RequestOptions.DEFAULT)) {
+            previous.add(ElasticsearchRepo.INDEX_NAME);
+        }
+        return previous;
+    }
+
+    private void reindex(List<String> sources, String target) throws IOException {
+        log.info(String.format("Migrating %s into %s", sources, target));
+        ReindexRequest request = new ReindexRequest();
+        request.setSourceIndices(sources.toArray(new String[0]));
+        request.setDestIndex(target);
+        request.setDestOpType("create");  //never overwrite documents already in the target
+        request.setConflicts("proceed");
+        request.setRefresh(true);
+        BulkByScrollResponse response = esClient.reindex(request, RequestOptions.DEFAULT);
+        log.info(String.format("Migrated %d documents into %s", response.getCreated(), target));
+    }
+
+}
@@ -1,13 +1,27 @@
 package de.alley.maverick.repositories;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import de.alley.maverick.protocol.DeadLetter;
 import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.FilePage;
+import de.alley.maverick.protocol.FileQuery;
+import de.alley.maverick.protocol.TagCount;
+import de.alley.maverick.protocol.TagOperationForm;
+import de.alley.maverick.protocol.TagOperationResult;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
-import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.WriteRequest;
@@ -17,80 +31,444 @@ import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.core.GetSourceRequest;
 import org.elasticsearch.client.core.GetSourceResponse;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.WildcardQueryBuilder;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.search.sort.SortOrder;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Slf4j
 @Repository
 public class ElasticsearchRepo {
 
-    private static final String INDEX_NAME = "files";
+    static final String INDEX_NAME = "files";
+    private static final String META_INDEX_NAME = "files-meta";
+    private static final String SYNC_CURSOR_ID = "dropbox-cursor";
+    private static final String CURSOR_FIELD_NAME = "cursor";
+    private static final String ID_FIELD_NAME = "id";
+    private static final String NAME_FIELD_NAME = "name";
+    private static final String NAME_NGRAM_FIELD_NAME = "name.ngram";
+    private static final String NAME_TRIGRAM_FIELD_NAME = "name.trigram";
+    private static final String PATH_FIELD_NAME = "path";
+    private static final int NGRAM_SIZE = 3;
     private static final String TAGS_FIELD_NAME = "tags";
-    private static final int START_SEARCH_RECORDS = 0;
-    private static final int MAX_SEARCH_RECORDS = 10000;
+    private static final String SYNC_RUN_FIELD_NAME = "syncRun";
+    private static final int SCAN_PAGE_SIZE = 1000;
+    static final String REFRESH_INTERVAL_SETTING = "index.refresh_interval";
+
+    @Value("${elasticsearch.bulk.actions:1000}")
+    private int bulkActions;
+
+    @Value("${elasticsearch.bulk.sizeMb:5}")
+    private long bulkSizeMb;
+
+    @Value("${elasticsearch.bulk.concurrentRequests:2}")
+    private int bulkConcurrentRequests;
+
+    @Value("${elasticsearch.bulk.awaitSeconds:300}")
+    private long bulkAwaitSeconds;
+
+    @Value("${elasticsearch.bulk.refreshInterval:30s}")
+    private String bulkRefreshInterval;
+
+    @Value("${elasticsearch.bulk.retries:5}")
+    private int bulkRetries;
+
+    @Value("${elasticsearch.bulk.backoffMillis:100}")
+    private long bulkBackoffMillis;
+
+    @Value("${elasticsearch.refresh.interactive:WAIT_UNTIL}")
+    private WriteRequest.RefreshPolicy interactiveRefresh;
+
+    @Value("${elasticsearch.refresh.lazyCreate:NONE}")
+    private WriteRequest.RefreshPolicy lazyCreateRefresh;
+
+    @Value("${elasticsearch.refresh.sync:NONE}")
+    private WriteRequest.RefreshPolicy syncRefresh;
 
     private final RestHighLevelClient esClient;
     private final ObjectMapper objectMapper;
+    private final RepositoryMetrics metrics;
+    private final ElasticsearchDeadLetterRepo deadLetterRepo;
+
+    private volatile boolean bulkLoading;
 
     @Autowired
-    public ElasticsearchRepo(RestHighLevelClient esClient, ObjectMapper objectMapper) {
+    public ElasticsearchRepo(RestHighLevelClient esClient, ObjectMapper objectMapper, RepositoryMetrics metrics,
+                             ElasticsearchDeadLetterRepo deadLetterRepo) {
         this.esClient = esClient;
         this.objectMapper = objectMapper;
+        this.metrics = metrics;
+        this.deadLetterRepo = deadLetterRepo;
     }
 
-    private IndexRequest prepareIndexRequest(FileInfo fileInfo, boolean wait) {
+    /**
+     * Visibility of the tag edits made by the users. While a bulk load stretches the refresh interval,
+     * an edit waiting for the next refresh would hang, so it forces its own refresh instead.
+     */
+    WriteRequest.RefreshPolicy getInteractiveRefresh() {
+        if (bulkLoading && interactiveRefresh == WriteRequest.RefreshPolicy.WAIT_UNTIL) {
+            return WriteRequest.RefreshPolicy.IMMEDIATE;
+        }
+        return interactiveRefresh;
+    }
+
+    IndexRequest prepareIndexRequest(FileInfo fileInfo) {
         IndexRequest request = new IndexRequest(INDEX_NAME);
         Map<String, Object> mappedFileInfo = objectMapper.convertValue(fileInfo, Map.class);
         request.id(fileInfo.getId());
         request.timeout(TimeValue.timeValueSeconds(1));
         request.opType(DocWriteRequest.OpType.CREATE);  //put if absent
-        if (wait) {
-            request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
-        }
         request.source(mappedFileInfo);
         return request;
     }
 
+    /**
+     * The chunks of the synchronization are not refreshed one by one, see {@link #refresh()}.
+     */
+    public FileInfoBulkWriter openBulkWriter() {
+        return new FileInfoBulkWriter(this, (request, listener) -> {
+            request.setRefreshPolicy(syncRefresh);
+            esClient.bulkAsync(request, RequestOptions.DEFAULT, metrics.elasticsearch("bulk", listener));
+        }, metrics.getRegistry(), BackoffPolicy.exponentialBackoff(TimeValue.timeValueMillis(bulkBackoffMillis), bulkRetries),
+                bulkActions, bulkSizeMb, bulkConcurrentRequests, bulkAwaitSeconds);
+    }
+
+    void parkDeadLetters(List<DeadLetter> letters) {
+        deadLetterRepo.park(letters);
+    }
+
+    /**
+     * Stretches the periodic refresh of the files index for a bulk load. The interval stays finite, so the
+     * index keeps refreshing should the load never resume it, see also {@link ElasticsearchIndexRepo#initIndex()}.
+     */
+    public void suspendRefresh() {
+        bulkLoading = true;
+        updateRefreshInterval(bulkRefreshInterval);
+    }
+
+    /**
+     * Restores the periodic refresh of the files index and makes all writes visible.
+     */
+    public void resumeRefresh() {
+        bulkLoading = false;
+        updateRefreshInterval(null);
+        refresh();
+    }
+
+    private void updateRefreshInterval(String interval) {
+        try {
+            Settings.Builder settings = Settings.builder();
+            if (interval == null) {
+                settings.putNull(REFRESH_INTERVAL_SETTING);  //back to the default of the index
+            } else {
+                settings.put(REFRESH_INTERVAL_SETTING, interval);
+            }
+            UpdateSettingsRequest request = new UpdateSettingsRequest(INDEX_NAME).settings(settings);
+            metrics.elasticsearch("settings", () -> esClient.indices().putSettings(request, RequestOptions.DEFAULT));
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot set the refresh interval %s in elasticsearch", interval));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    /**
+     * One explicit refresh at the end of a synchronization run.
+     */
+    public void refresh() {
+        try {
+            RefreshRequest request = new RefreshRequest(INDEX_NAME);
+            metrics.elasticsearch("refresh", () -> esClient.indices().refresh(request, RequestOptions.DEFAULT));
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn("Cannot refresh the files in elasticsearch");
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
     public void createElasticSearchRecordsIfNotExists(List<FileInfo> fileInfos) {
+        if (fileInfos.isEmpty()) {
+            return;
+        }
+        List<DocWriteRequest<?>> requests = fileInfos.stream()
+                .map(this::prepareIndexRequest)
+                .collect(Collectors.toList());
+        deadLetterRepo.park(bulkWithRetry(requests, lazyCreateRefresh));
+    }
+
+    /**
+     * Writes the dead letters again, the same way as they were written the first time.
+     *
+     * @return the letters failed again, with the new failure
+     */
+    public List<DeadLetter> replayDeadLetters(List<DeadLetter> letters) {
+        List<DocWriteRequest<?>> requests = letters.stream()
+                .map(this::fromDeadLetter)
+                .collect(Collectors.toList());
+        return bulkWithRetry(requests, syncRefresh);
+    }
+
+    /**
+     * Bulk with the inspection of every item. A conflict is a success, the file is already there.
+     * The rejections of a saturated cluster and the unreachable cluster are retried with an exponential backoff,
+     * in batches halved on every retry so a busy write pool gets smaller requests. The other failures and the
+     * writes still rejected after the last retry come back as dead letters.
+     */
+    List<DeadLetter> bulkWithRetry(List<DocWriteRequest<?>> requests, WriteRequest.RefreshPolicy refresh) {
+        List<DeadLetter> dead = new ArrayList<>();
+        List<DocWriteRequest<?>> pending = requests;
+        int batchSize = Math.max(1, requests.size());
+        for (int attempt = 0; !pending.isEmpty(); attempt++) {
+            if (attempt > 0) {
+                pause(bulkBackoffMillis << Math.min(attempt - 1, 20));
+                batchSize = Math.max(1, batchSize / 2);
+            }
+            boolean last = attempt >= bulkRetries;
+            List<DocWriteRequest<?>> rejected = new ArrayList<>();
+            for (int from = 0; from < pending.size(); from += batchSize) {
+                List<DocWriteRequest<?>> batch = pending.subList(from, Math.min(pending.size(), from + batchSize));
+                BulkRequest bulkRequest = new BulkRequest();
+                bulkRequest.setRefreshPolicy(refresh);
+                batch.forEach(bulkRequest::add);
+                try {
+                    BulkResponse response = metrics.elasticsearch("bulk", () -> esClient.bulk(bulkRequest, RequestOptions.DEFAULT));
+                    for (BulkItemResponse item : response.getItems()) {
+                        if (!item.isFailed() || item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                            continue;
+                        }
+                        DocWriteRequest<?> request = batch.get(item.getItemId());
+                        int status = item.getFailure().getStatus().getStatus();
+                        if (!last && isRetryable(status)) {
+                            rejected.add(request);
+                        } else {
+                            dead.add(toDeadLetter(request, status, item.getFailureMessage()));
+                        }
+                    }
+                } catch (ElasticsearchStatusException | IOException ex) {
+                    int status = ex instanceof ElasticsearchStatusException
+                            ? ((ElasticsearchStatusException) ex).status().getStatus() : 0;
+                    if (!last && isRetryable(status)) {
+                        rejected.addAll(batch);
+                    } else {
+                        log.warn(String.format("Cannot bulk %d files in elasticsearch", batch.size()));
+                        batch.forEach(request -> dead.add(toDeadLetter(request, status, ex.getMessage())));
+                    }
+                }
+            }
+            if (!rejected.isEmpty()) {
+                log.info(String.format("%d writes are rejected by elasticsearch, retry %d", rejected.size(), attempt + 1));
+            }
+            pending = rejected;
+        }
+        return dead;
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 0
+                || status == RestStatus.TOO_MANY_REQUESTS.getStatus()
+                || status == RestStatus.SERVICE_UNAVAILABLE.getStatus();
+    }
+
+    private static void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    DeadLetter toDeadLetter(DocWriteRequest<?> request, int status, String error) {
+        DeadLetter.DeadLetterBuilder letter = DeadLetter.builder()
+                .fileId(request.id())
+                .status(status)
+                .error(error)
+                .failedAt(Instant.now().toString());
+        if (request instanceof IndexRequest) {
+            letter.operation(DeadLetter.CREATE).document(((IndexRequest) request).sourceAsMap());
+        } else if (request instanceof UpdateRequest) {
+            letter.operation(DeadLetter.UPSERT).document(((UpdateRequest) request).doc().sourceAsMap());
+        } else {
+            letter.operation(DeadLetter.DELETE);
+        }
+        return letter.build();
+    }
+
+    DocWriteRequest<?> fromDeadLetter(DeadLetter letter) {
+        switch (letter.getOperation()) {
+            case DeadLetter.CREATE:
+                return prepareIndexRequest(toFileInfo(letter.getDocument()));
+            case DeadLetter.UPSERT:
+                return prepareUpsertRequest(toFileInfo(letter.getDocument()));
+            case DeadLetter.DELETE:
+                return prepareDeleteRequest(letter.getFileId());
+            default:
+                throw new IllegalArgumentException(String.format("Not valid dead letter operation %s", letter.getOperation()));
+        }
+    }
+
+    UpdateRequest prepareUpsertRequest(FileInfo fileInfo) {
+        return prepareUpsertRequest(fileInfo, Collections.emptyMap());
+    }
+
+    /**
+     * Upsert of a listed file, stamped with the full synchronization run which has listed it.
+     */
+    UpdateRequest prepareUpsertRequest(FileInfo fileInfo, long syncRun) {
+        return prepareUpsertRequest(fileInfo, Collections.singletonMap(SYNC_RUN_FIELD_NAME, syncRun));
+    }
+
+    private UpdateRequest prepareUpsertRequest(FileInfo fileInfo, Map<String, Object> stamp) {
+        Map<String, Object> mappedFileInfo = objectMapper.convertValue(fileInfo, Map.class);
+        mappedFileInfo.remove(TAGS_FIELD_NAME);  //the tags are owned by elasticsearch, never overwrite them
+        mappedFileInfo.putAll(stamp);
+        UpdateRequest request = new UpdateRequest(INDEX_NAME, fileInfo.getId()).doc(mappedFileInfo);
+        request.docAsUpsert(true);
+        request.retryOnConflict(3);
+        request.timeout(TimeValue.timeValueSeconds(1));
+        return request;
+    }
+
+    /**
+     * Stamps an unchanged file with the full synchronization run which has listed it, nothing else is written.
+     */
+    UpdateRequest prepareStampRequest(String fileId, long syncRun) {
+        UpdateRequest request = new UpdateRequest(INDEX_NAME, fileId)
+                .doc(Collections.singletonMap(SYNC_RUN_FIELD_NAME, syncRun));
+        request.retryOnConflict(3);
+        request.timeout(TimeValue.timeValueSeconds(1));
+        return request;
+    }
+
+    DeleteRequest prepareDeleteRequest(String fileId) {
+        DeleteRequest request = new DeleteRequest(INDEX_NAME, fileId);
+        request.timeout(TimeValue.timeValueSeconds(1));
+        return request;
+    }
+
+    /**
+     * The files are searched, so the writes not refreshed yet, like the files lazily created or the previous
+     * delta, are refreshed first.
+     */
+    public long deleteElasticsearchRecordsByPaths(List<String> paths, Collection<String> excludedIds) {
+        if (paths.isEmpty()) {
+            return 0;
+        }
+        refresh();
+        try {
+            BoolQueryBuilder query = QueryBuilders.boolQuery().minimumShouldMatch(1);
+            paths.forEach(path -> query
+                    .should(QueryBuilders.termQuery(PATH_FIELD_NAME, path))
+                    .should(QueryBuilders.prefixQuery(PATH_FIELD_NAME, path + "/")));
+            if (!excludedIds.isEmpty()) {
+                //moved files are deleted under the old path and re-added under the new one, keep their tags
+                query.mustNot(QueryBuilders.idsQuery().addIds(excludedIds.toArray(new String[0])));
+            }
+            DeleteByQueryRequest request = new DeleteByQueryRequest(INDEX_NAME);
+            request.setQuery(query);
+            request.setConflicts("proceed");
+            BulkByScrollResponse response = metrics.elasticsearch("deleteByQuery",
+                    () -> esClient.deleteByQuery(request, RequestOptions.DEFAULT));
+            return response.getDeleted();
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot delete the paths %s in elasticsearch", paths));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    /**
+     * Deletes the untagged files not listed by the full synchronization run, they are searched,
+     * so the stamps of the run have to be refreshed before. A file tagged meanwhile is a conflict and is kept.
+     */
+    public long deleteUntaggedRecordsNotSynced(long syncRun) {
+        try {
+            DeleteByQueryRequest request = new DeleteByQueryRequest(INDEX_NAME);
+            request.setQuery(QueryBuilders.boolQuery()
+                    .mustNot(QueryBuilders.termQuery(SYNC_RUN_FIELD_NAME, syncRun))
+                    .mustNot(QueryBuilders.existsQuery(TAGS_FIELD_NAME)));
+            request.setConflicts("proceed");
+            request.setRefresh(true);
+            BulkByScrollResponse response = metrics.elasticsearch("deleteByQuery",
+                    () -> esClient.deleteByQuery(request, RequestOptions.DEFAULT));
+            return response.getDeleted();
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot delete the files not listed by the run %d in elasticsearch", syncRun));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    /**
+     * Streams the id and the tags of the tagged files not listed by the full synchronization run, ordered by id.
+     */
+    public void scanTaggedRecordsNotSynced(long syncRun, Consumer<FileInfo> consumer) {
+        scanElasticsearchRecords(QueryBuilders.boolQuery()
+                .mustNot(QueryBuilders.termQuery(SYNC_RUN_FIELD_NAME, syncRun))
+                .filter(QueryBuilders.existsQuery(TAGS_FIELD_NAME)), consumer);
+    }
+
+    public Optional<String> findSyncCursor() {
         try {
-            BulkRequest bulkRequest = new BulkRequest();
-            bulkRequest.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
-            fileInfos.forEach(fileInfo -> {
-                IndexRequest request = prepareIndexRequest(fileInfo, false);
-                bulkRequest.add(request);
-            });
-            esClient.bulk(bulkRequest, RequestOptions.DEFAULT);
+            GetSourceRequest getSourceRequest = new GetSourceRequest(META_INDEX_NAME, SYNC_CURSOR_ID);
+            GetSourceResponse response = metrics.elasticsearch("get",
+                    () -> esClient.getSource(getSourceRequest, RequestOptions.DEFAULT));
+            return Optional.ofNullable((String) response.getSource().get(CURSOR_FIELD_NAME));
+        } catch (ElasticsearchStatusException ex) {
+            log.info(String.format("There is no synchronization cursor in elasticsearch, %s", ex.getMessage()));
+            return Optional.empty();
         } catch (IOException ex) {
-            log.warn(String.format("Cannot bulk the files %s in elasticsearch", fileInfos));
+            log.warn("Something wrong with the synchronization cursor in elasticsearch");
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    public void saveSyncCursor(String cursor) {
+        try {
+            IndexRequest request = new IndexRequest(META_INDEX_NAME);
+            request.id(SYNC_CURSOR_ID);
+            request.timeout(TimeValue.timeValueSeconds(1));
+            request.source(Collections.singletonMap(CURSOR_FIELD_NAME, cursor));
+            metrics.elasticsearch("index", () -> esClient.index(request, RequestOptions.DEFAULT));
+        } catch (ElasticsearchStatusException | IOException ex) {
+            log.warn("Cannot save the synchronization cursor in elasticsearch");
             throw new IllegalStateException("Critical error in elasticsearch", ex);
         }
     }
 
     public void createElasticsearchRecordIfNotExists(FileInfo fileInfo) {
         try {
-            IndexRequest request = prepareIndexRequest(fileInfo, true);
-            IndexResponse response = esClient.index(request, RequestOptions.DEFAULT);
+            IndexRequest request = prepareIndexRequest(fileInfo);
+            request.setRefreshPolicy(lazyCreateRefresh);  //get by id is realtime, no refresh needed for it
+            metrics.elasticsearch("index", () -> esClient.index(request, RequestOptions.DEFAULT));
         } catch (ElasticsearchStatusException | IOException ex) {
             log.warn(String.format("Cannot save the file %s in elasticsearch", fileInfo));
             throw new IllegalStateException("Critical error in elasticsearch", ex);
@@ -100,8 +478,9 @@ public class ElasticsearchRepo {
     public Optional<FileInfo> findElasticsearchRecordById(String fileId) {
         try {
             GetSourceRequest getSourceRequest = new GetSourceRequest(INDEX_NAME, fileId);
-            GetSourceResponse response = esClient.getSource(getSourceRequest, RequestOptions.DEFAULT);
-            return Optional.of(objectMapper.convertValue(response.getSource(), FileInfo.class));
+            GetSourceResponse response = metrics.elasticsearch("get",
+                    () -> esClient.getSource(getSourceRequest, RequestOptions.DEFAULT));
+            return Optional.of(toFileInfo(response.getSource()));
         } catch (ElasticsearchStatusException ex) {
             log.warn(String.format("Cannot find the file %s in elasticsearch, %s", fileId, ex.getMessage()));
             return Optional.empty();
@@ -111,65 +490,218 @@ public class ElasticsearchRepo {
         }
     }
 
-    public Optional<FileInfo> updateElasticsearchRecord(FileInfo existingFileInfo, List<String> parameterTags, Mode mode) {
+    /**
+     * Realtime multi get of the file metadata, the tags are not fetched.
+     *
+     * @return the indexed files by id, the unknown ids are missing
+     */
+    public Map<String, FileInfo> findElasticsearchRecordsByIds(Collection<String> fileIds) {
+        if (fileIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
         try {
-            List<String> newTags;
-            switch (mode) {
-                case MERGE: {
-                    Set<String> uniqueTags = new LinkedHashSet<>();
-                    uniqueTags.addAll(existingFileInfo.getTags());
-                    uniqueTags.addAll(parameterTags);
-                    newTags = new ArrayList<>(uniqueTags);
-                    break;
-                }
-                case RESET: {
-                    newTags = parameterTags;
-                    break;
+            MultiGetRequest request = new MultiGetRequest();
+            FetchSourceContext metadataOnly = new FetchSourceContext(true, null, new String[]{TAGS_FIELD_NAME});
+            fileIds.forEach(id -> request.add(new MultiGetRequest.Item(INDEX_NAME, id).fetchSourceContext(metadataOnly)));
+            MultiGetResponse response = metrics.elasticsearch("mget", () -> esClient.mget(request, RequestOptions.DEFAULT));
+            Map<String, FileInfo> found = new HashMap<>();
+            for (MultiGetItemResponse item : response.getResponses()) {
+                if (item.isFailed()) {
+                    throw new IllegalStateException(item.getFailure().getMessage(), item.getFailure().getFailure());
                 }
-                case DELETE: {
-                    newTags = existingFileInfo.getTags().stream()
-                            .filter(t -> !parameterTags.contains(t)).collect(Collectors.toList());
-                    break;
+                if (item.getResponse().isExists()) {
+                    found.put(item.getId(), toFileInfo(item.getResponse().getSourceAsMap()));
                 }
-                default:
-                    throw new IllegalStateException("Unknown mode for updating elasticsearch.");
             }
-            Map<String, Object> requestMap = new HashMap<>();
-            requestMap.put(TAGS_FIELD_NAME, newTags);
-            UpdateRequest request = new UpdateRequest(INDEX_NAME, existingFileInfo.getId()).doc(requestMap);
-            request.retryOnConflict(3);
-            request.timeout(TimeValue.timeValueSeconds(1));
-            request.setRefreshPolicy(WriteRequest.RefreshPolicy.WAIT_UNTIL);
-            UpdateResponse response = esClient.update(request, RequestOptions.DEFAULT);
-            log.debug(String.format("response after elasticsearch update %s", response.toString()));
-            return findElasticsearchRecordById(existingFileInfo.getId());
+            return found;
+        } catch (IllegalStateException | ElasticsearchStatusException | IOException ex) {
+            log.warn(String.format("Cannot get %d files from elasticsearch", fileIds.size()));
+            throw new IllegalStateException("Critical error in elasticsearch", ex);
+        }
+    }
+
+    private void scanElasticsearchRecords(QueryBuilder query, Consumer<FileInfo> consumer) {
+        try {
+            Object[] after = null;
+            SearchHit[] hits;
+            do {
+                SearchSourceBuilder scb = new SearchSourceBuilder();
+                scb.size(SCAN_PAGE_SIZE);
+                scb.timeout(new TimeValue(5, TimeUnit.SECONDS));
+                scb.trackTotalHits(false);
+                scb.query(query);
+                scb.fetchSource(new String[]{ID_FIELD_NAME, TAGS_FIELD_NAME}, null);
+                scb.sort(ID_FIELD_NAME, SortOrder.ASC);
+                if (after != null) {
+                    scb.searchAfter(after);
+                }
+                SearchRequest request = new SearchRequest(INDEX_NAME).source(scb);
+                SearchResponse response = metrics.elasticsearch("search", () -> esClient.search(request, RequestOptions.DEFAULT));
+                hits = response.getHits().getHits();
+                for (SearchHit hit : hits) {
+                    consumer.accept(toFileInfo(hit.getSourceAsMap()));
+                }
+                if (hits.length > 0) {
+                    after = hits[hits.length - 1].getSortValues();
+                }
+            } while (hits.length == SCAN_PAGE_SIZE);
         } catch (ElasticsearchStatusException | IOException ex) {
-            log.warn(String.format("Cannot update the file %s in elasticsearch", existingFileInfo.getId()));
+            log.warn("Cannot scan the files in elasticsearch");
             throw new IllegalStateException("Critical error in elasticsearch", ex);
         }
     }
 
-    public List<FileInfo> findByPartName(String fileName) {
+    UpdateRequest prepareTagsUpdateRequest(String fileId, List<String> tags, Mode mode) {
+        Script script = new Script(ScriptType.STORED, null, mode.getScriptId(),
+                Collections.singletonMap(TAGS_FIELD_NAME, tags));
+        UpdateRequest request = new UpdateRequest(INDEX_NAME, fileId).script(script);
+        request.fetchSource(true);  //the updated document comes back in the same response
+        request.retryOnConflict(3);
+        request.timeout(TimeValue.timeValueSeconds(1));
+        return request;
+    }
+
+    BulkRequest prepareTagsBulkRequest(List<TagOperationForm> operations) {
+        BulkRequest bulkRequest = new BulkRequest();
+        bulkRequest.setRefreshPolicy(getInteractiveRefresh());
+        operations.forEach(operation -> bulkRequest.add(
+                prepareTagsUpdateRequest(operation.getFileId(), operation.getTags(), operation.getMode())));
+        return bulkRequest;
+    }
+
+    /**
+     * @return the result of every operation, in the order of the operations
+     */
+    List<TagOperationResult> toTagOperationResults(BulkResponse response) {
+        return Arrays.stream(response.getItems()).map(item -> {
+            TagOperationResult.TagOperationResultBuilder result = TagOperationResult.builder().fileId(item.getId());
+            if (item.isFailed()) {
+                return result.status(item.getFailure().getStatus().getStatus())
+                        .error(item.getFailureMessage()).build();
+            }
+            UpdateResponse updated = item.getResponse();
+            return result.status(RestStatus.OK.getStatus())
+                    .file(toFileInfo(updated.getGetResult().sourceAsMap()))
+                    .build();
+        }).collect(Collectors.toList());
+    }
+
+    FileInfo toFileInfo(Map<String, Object> source) {
+        return objectMapper.convertValue(source, FileInfo.class);
+    }
+
+    /**
+     * Substring match on the name, case insensitive.
+     * The n-grams of the name are indexed, so the files are found by terms instead of scanning the whole
+     * term dictionary. A part shorter than a trigram is one of the short grams, a longer one is the phrase
+     * of its trigrams, which are adjacent only where the part is.
+     */
+    private QueryBuilder preparePartNameQuery(String fileName) {
+        if (fileName == null || fileName.isEmpty()) {
+            return QueryBuilders.matchAllQuery();
+        }
+        String part = fileName.toLowerCase(Locale.ROOT);
+        if (part.length() < NGRAM_SIZE) {
+            return QueryBuilders.termQuery(NAME_NGRAM_FIELD_NAME, part);
+        }
+        return QueryBuilders.matchPhraseQuery(NAME_TRIGRAM_FIELD_NAME, part);
+    }
+
+    /**
+     * Tag conditions are filters, they are not scored and elasticsearch can cache them.
+     */
+    private QueryBuilder prepareFileQuery(FileQuery fileQuery) {
+        BoolQueryBuilder query = QueryBuilders.boolQuery().filter(preparePartNameQuery(fileQuery.getFileName()));
+        fileQuery.getTags().forEach(tag -> query.filter(QueryBuilders.termQuery(TAGS_FIELD_NAME, tag)));
+        if (!fileQuery.getAnyTags().isEmpty()) {
+            query.filter(QueryBuilders.termsQuery(TAGS_FIELD_NAME, fileQuery.getAnyTags()));
+        }
+        if (!fileQuery.getNotTags().isEmpty()) {
+            query.mustNot(QueryBuilders.termsQuery(TAGS_FIELD_NAME, fileQuery.getNotTags()));
+        }
+        return query;
+    }
+
+    SearchRequest prepareSearchRequest(FileQuery fileQuery, int limit, String cursor) {
+        SearchRequest request = new SearchRequest(INDEX_NAME);
+        SearchSourceBuilder scb = new SearchSourceBuilder();
+        scb.size(limit + 1);  //one more to know if there is a next page
+        scb.timeout(new TimeValue(5, TimeUnit.SECONDS));
+        scb.trackTotalHits(false);
+        scb.query(prepareFileQuery(fileQuery));
+        scb.sort(NAME_FIELD_NAME, SortOrder.ASC);
+        scb.sort(ID_FIELD_NAME, SortOrder.ASC);
+        if (cursor != null) {
+            scb.searchAfter(decodeCursor(cursor));
+        }
+        request.source(scb);
+        return request;
+    }
+
+    FilePage toFilePage(SearchResponse response, int limit) {
+        SearchHit[] searchHits = response.getHits().getHits();
+        List<FileInfo> files = Arrays.stream(searchHits)
+                .limit(limit)
+                .map(e -> toFileInfo(e.getSourceAsMap()))
+                .collect(Collectors.toList());
+        String nextCursor = searchHits.length > limit ? encodeCursor(searchHits[limit - 1].getSortValues()) : null;
+        return FilePage.builder().files(files).nextCursor(nextCursor).build();
+    }
+
+    public FilePage findByQuery(FileQuery fileQuery, int limit, String cursor) {
         try {
-            SearchRequest request = new SearchRequest(INDEX_NAME);
-            SearchSourceBuilder scb = new SearchSourceBuilder();
-            scb.from(START_SEARCH_RECORDS);
-            scb.size(MAX_SEARCH_RECORDS);
-            scb.timeout(new TimeValue(5, TimeUnit.SECONDS));
-            WildcardQueryBuilder mcb = QueryBuilders.wildcardQuery("name", "*" + fileName + "*");
-            scb.query(mcb);
-            request.source(scb);
-            SearchResponse response = esClient.search(request, RequestOptions.DEFAULT);
-            SearchHits hits = response.getHits();
-            SearchHit[] searchHits = hits.getHits();
-            return Arrays.stream(searchHits)
-                    .filter(Objects::nonNull)
-                    .map(e -> objectMapper.convertValue(e.getSourceAsMap(), FileInfo.class))
-                    .sorted(Comparator.comparing(FileInfo::getName))
-                    .collect(Collectors.toList());
+            SearchRequest request = prepareSearchRequest(fileQuery, limit, cursor);
+            SearchResponse response = metrics.elasticsearch("search", () -> esClient.search(request, RequestOptions.DEFAULT));
+            return toFilePage(response, limit);
         } catch (IOException ex) {
-            log.warn(String.format("Cannot find the files %s in elasticsearch", fileName));
+            log.warn(String.format("Cannot find the files %s in elasticsearch", fileQuery));
             throw new IllegalStateException("Critical error in elasticsearch", ex);
         }
     }
+
+    SearchRequest prepareTagCountRequest(FileQuery fileQuery, int size) {
+        SearchRequest request = new SearchRequest(INDEX_NAME);
+        SearchSourceBuilder scb = new SearchSourceBuilder();
+        scb.size(0);  //only the aggregation, computed from the doc values of the tags
+        scb.timeout(new TimeValue(5, TimeUnit.SECONDS));
+        scb.trackTotalHits(false);
+        scb.query(prepareFileQuery(fileQuery));
+        scb.aggregation(AggregationBuilders.terms(TAGS_FIELD_NAME).field(TAGS_FIELD_NAME).size(size));
+        request.source(scb);
+        return request;
+    }
+
+    List<TagCount> toTagCounts(SearchResponse response) {
+        Terms terms = response.getAggregations().get(TAGS_FIELD_NAME);
+        return terms.getBuckets().stream()
+                .map(b -> TagCount.builder().tag(b.getKeyAsString()).count(b.getDocCount()).build())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * The cursor of the pages following the file, in the order of {@link #prepareSearchRequest}.
+     */
+    public String encodeCursor(FileInfo last) {
+        return encodeCursor(new Object[]{last.getName(), last.getId()});
+    }
+
+    private String encodeCursor(Object[] sortValues) {
+        try {
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(objectMapper.writeValueAsBytes(sortValues));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private Object[] decodeCursor(String cursor) {
+        try {
+            Object[] sortValues = objectMapper.readValue(Base64.getUrlDecoder().decode(cursor), Object[].class);
+            if (sortValues.length != 2) {
+                throw new IllegalArgumentException(String.format("Not valid cursor %s", cursor));
+            }
+            return sortValues;
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Not valid cursor %s", cursor), ex);
+        }
+    }
 }
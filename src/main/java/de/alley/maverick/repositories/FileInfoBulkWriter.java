@@ -0,0 +1,177 @@
+package de.alley.maverick.repositories;
+
+import de.alley.maverick.protocol.FileInfo;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Streams file records into elasticsearch in bounded bulk chunks.
+ * A chunk is flushed when it reaches the configured number of actions or megabytes, and
+ * adding blocks while the configured number of chunks is still in flight.
+ * The rejections of a saturated cluster are retried by the processor with the backoff policy, the writes
+ * failed for good are parked as dead letters. Conflicts mean a concurrent write of the same file has won,
+ * a missing file means a stamp has lost against a concurrent delete.
+ */
+@Slf4j
+public class FileInfoBulkWriter implements Closeable {
+
+    private final ElasticsearchRepo esRepo;
+    private final BulkProcessor processor;
+    private final long awaitSeconds;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Counter failedItems;
+
+    FileInfoBulkWriter(ElasticsearchRepo esRepo, BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer,
+                       MeterRegistry registry, BackoffPolicy backoffPolicy,
+                       int bulkActions, long bulkSizeMb, int concurrentRequests, long awaitSeconds) {
+        this.esRepo = esRepo;
+        this.awaitSeconds = awaitSeconds;
+        this.failedItems = registry.counter("elasticsearch.bulk.failures");
+        this.processor = BulkProcessor.builder(consumer, new Listener())
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setConcurrentRequests(concurrentRequests)
+                .setBackoffPolicy(backoffPolicy)
+                .build();
+    }
+
+
+    /**
+     * Insert or update the file metadata, keeping the tags.
+     */
+    public void upsert(FileInfo fileInfo) {
+        processor.add(esRepo.prepareUpsertRequest(fileInfo));
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Insert or update the file metadata listed by a full synchronization run, keeping the tags.
+     */
+    public void upsert(FileInfo fileInfo, long syncRun) {
+        processor.add(esRepo.prepareUpsertRequest(fileInfo, syncRun));
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Marks an unchanged file as listed by a full synchronization run.
+     */
+    public void stamp(String fileId, long syncRun) {
+        processor.add(esRepo.prepareStampRequest(fileId, syncRun));
+        submitted.incrementAndGet();
+    }
+
+    public void delete(String fileId) {
+        processor.add(esRepo.prepareDeleteRequest(fileId));
+        submitted.incrementAndGet();
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Flushes the remaining records and waits for all chunks in flight.
+     *
+     * @throws IllegalStateException when the chunks are not completed in time or some records have failed,
+     *                               so the synchronization does not save its cursor past them
+     */
+    @Override
+    public void close() {
+        try {
+            if (!processor.awaitClose(awaitSeconds, TimeUnit.SECONDS)) {
+                log.warn(String.format("Bulk writer is closed before all chunks completed in %d seconds", awaitSeconds));
+                throw new IllegalStateException("Critical error in elasticsearch");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while flushing to elasticsearch", e);
+        }
+        if (failed.get() > 0) {
+            log.warn(String.format("Bulk writer has %d failed records of %d", failed.get(), submitted.get()));
+            throw new IllegalStateException("Critical error in elasticsearch");
+        }
+    }
+
+    /**
+     * A failed stamp fails the run, which stamps again the next time. As a dead letter it would be replayed
+     * as an upsert without the metadata.
+     */
+    private static boolean isStamp(DocWriteRequest<?> request) {
+        return request instanceof UpdateRequest && !((UpdateRequest) request).docAsUpsert();
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            log.debug(String.format("Bulk #%d with %d actions and %d bytes", executionId,
+                    request.numberOfActions(), request.estimatedSizeInBytes()));
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            if (response.hasFailures()) {
+                // matched by id, the positions of the items do not survive the retries of the processor
+                Map<String, DocWriteRequest<?>> requests = request.requests().stream()
+                        .collect(Collectors.toMap(DocWriteRequest::id, r -> r, (first, second) -> second));
+                List<BulkItemResponse> failures = Arrays.stream(response.getItems())
+                        .filter(BulkItemResponse::isFailed)
+                        .filter(item -> item.getFailure().getStatus() != RestStatus.CONFLICT)
+                        .filter(item -> item.getFailure().getStatus() != RestStatus.NOT_FOUND)
+                        .collect(Collectors.toList());
+                if (!failures.isEmpty()) {
+                    failed.addAndGet(failures.size());
+                    failedItems.increment(failures.size());
+                    log.warn(String.format("Bulk #%d has %d failures, the first one: %s", executionId,
+                            failures.size(), failures.get(0).getFailureMessage()));
+                    esRepo.parkDeadLetters(failures.stream()
+                            .filter(item -> !isStamp(requests.get(item.getId())))
+                            .map(item -> esRepo.toDeadLetter(requests.get(item.getId()),
+                                    item.getFailure().getStatus().getStatus(), item.getFailureMessage()))
+                            .collect(Collectors.toList()));
+                }
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            failed.addAndGet(request.numberOfActions());
+            failedItems.increment(request.numberOfActions());
+            log.warn(String.format("Bulk #%d with %d actions has failed", executionId, request.numberOfActions()),
+                    failure);
+            esRepo.parkDeadLetters(request.requests().stream()
+                    .filter(r -> !isStamp(r))
+                    .map(r -> esRepo.toDeadLetter(r, 0, failure.getMessage()))
+                    .collect(Collectors.toList()));
+        }
+
+    }
+
+}
@@ -14,6 +14,7 @@ public final class FileInfoMapper {
                 .name(meta.getName())
                 .path(meta.getPathLower())
                 .size(meta.getSize())
+                .rev(meta.getRev())
                 .build();
     }
 
@@ -2,8 +2,21 @@ package de.alley.maverick.repositories;
 
 public enum Mode {
 
-    RESET,
-    MERGE,
-    DELETE
+    RESET("files-tags-reset"),
+    MERGE("files-tags-merge"),
+    DELETE("files-tags-delete");
+
+    /**
+     * Id of the stored painless script applying the mode in elasticsearch.
+     */
+    private final String scriptId;
+
+    Mode(String scriptId) {
+        this.scriptId = scriptId;
+    }
+
+    public String getScriptId() {
+        return scriptId;
+    }
 
 }
@@ -0,0 +1,94 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.RateLimitException;
+import com.dropbox.core.v2.files.GetMetadataErrorException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.rest.RestStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * Timers of the calls to elasticsearch and dropbox, tagged by operation and outcome.
+ * A missing document or file is an outcome of its own, it is not an error of the backend.
+ */
+@Component
+public class RepositoryMetrics {
+
+    static final String ELASTICSEARCH = "elasticsearch";
+    static final String DROPBOX = "dropbox";
+
+    @FunctionalInterface
+    interface ElasticsearchCall<T> {
+        T call() throws IOException;
+    }
+
+    private final MeterRegistry registry;
+
+    @Autowired
+    public RepositoryMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    Timer.Sample start() {
+        return Timer.start(registry);
+    }
+
+    void stop(Timer.Sample sample, String backend, String operation, Throwable failure) {
+        sample.stop(Timer.builder(backend + ".requests")
+                .tag("operation", operation)
+                .tag("outcome", outcome(failure))
+                .register(registry));
+    }
+
+    <T> T elasticsearch(String operation, ElasticsearchCall<T> call) throws IOException {
+        Timer.Sample sample = start();
+        Throwable failure = null;
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException ex) {
+            failure = ex;
+            throw ex;
+        } finally {
+            stop(sample, ELASTICSEARCH, operation, failure);
+        }
+    }
+
+    /**
+     * Times an asynchronous call, until its listener is notified.
+     */
+    <T> ActionListener<T> elasticsearch(String operation, ActionListener<T> listener) {
+        Timer.Sample sample = start();
+        return ActionListener.wrap(response -> {
+            stop(sample, ELASTICSEARCH, operation, null);
+            listener.onResponse(response);
+        }, ex -> {
+            stop(sample, ELASTICSEARCH, operation, ex);
+            listener.onFailure(ex);
+        });
+    }
+
+    private static String outcome(Throwable failure) {
+        if (failure == null) {
+            return "success";
+        }
+        if (failure instanceof ElasticsearchStatusException
+                && ((ElasticsearchStatusException) failure).status() == RestStatus.NOT_FOUND
+                || failure instanceof GetMetadataErrorException) {
+            return "not_found";
+        }
+        if (failure instanceof RateLimitException) {
+            return "throttled";
+        }
+        return "error";
+    }
+
+}
@@ -0,0 +1,57 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.protocol.DeadLetter;
+import de.alley.maverick.protocol.DeadLetterReplay;
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.ElasticsearchDeadLetterRepo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Replay of the writes parked as dead letters, once the cause of their failure is fixed.
+ * The replayed writes are removed from the dead letters, the ones failed again stay with the new failure.
+ */
+@Slf4j
+@Service
+public class DeadLetterService {
+
+    private final ElasticsearchRepo esRepo;
+    private final ElasticsearchDeadLetterRepo deadLetterRepo;
+    private final ExpiringCache<String, FileInfo> fileCache;
+
+    @Autowired
+    public DeadLetterService(ElasticsearchRepo esRepo, ElasticsearchDeadLetterRepo deadLetterRepo,
+                             ExpiringCache<String, FileInfo> fileCache) {
+        this.esRepo = esRepo;
+        this.deadLetterRepo = deadLetterRepo;
+        this.fileCache = fileCache;
+    }
+
+    public List<DeadLetter> findDeadLetters(int limit) {
+        return deadLetterRepo.findDeadLetters(limit);
+    }
+
+    /**
+     * Replays the oldest dead letters.
+     */
+    public DeadLetterReplay replay(int limit) {
+        List<DeadLetter> letters = deadLetterRepo.findDeadLetters(limit);
+        List<DeadLetter> failed = esRepo.replayDeadLetters(letters);
+        Set<String> failedIds = failed.stream().map(DeadLetter::getFileId).collect(Collectors.toSet());
+        List<String> replayedIds = letters.stream()
+                .map(DeadLetter::getFileId)
+                .filter(id -> !failedIds.contains(id))
+                .collect(Collectors.toList());
+        deadLetterRepo.remove(replayedIds);
+        deadLetterRepo.park(failed);
+        replayedIds.forEach(fileCache::invalidate);
+        log.info(String.format("%d dead letters are replayed, %d failed again", replayedIds.size(), failed.size()));
+        return DeadLetterReplay.builder().replayed(replayedIds.size()).failed(failed).build();
+    }
+}
@@ -0,0 +1,107 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.repositories.DropboxLongpoll;
+import de.alley.maverick.repositories.DropboxRepo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Near real time ingestion of the dropbox changes.
+ * A longpoll is held on the saved cursor, as soon as dropbox signals a change the delta is applied.
+ * Nothing is polled until the first synchronization has saved a cursor. When dropbox resets the cursor,
+ * the synchronization is triggered all the same and lists everything again.
+ */
+@Slf4j
+@Service
+public class DropboxChangeListener implements SmartLifecycle {
+
+    private final ElasticsearchRepo esRepo;
+    private final DropboxRepo dbRepo;
+    private final FilesSynchronizer fileSync;
+    private final boolean enabled;
+    private final long timeoutSeconds;
+    private final long retrySeconds;
+
+    private volatile boolean running;
+    private volatile Thread listener;
+
+    @Autowired
+    public DropboxChangeListener(ElasticsearchRepo esRepo, DropboxRepo dbRepo, FilesSynchronizer fileSync,
+                                 @Value("${synchronizer.longpoll.enabled:true}") boolean enabled,
+                                 @Value("${synchronizer.longpoll.timeoutSeconds:120}") long timeoutSeconds,
+                                 @Value("${synchronizer.longpoll.retrySeconds:30}") long retrySeconds) {
+        this.esRepo = esRepo;
+        this.dbRepo = dbRepo;
+        this.fileSync = fileSync;
+        this.enabled = enabled;
+        this.timeoutSeconds = timeoutSeconds;
+        this.retrySeconds = retrySeconds;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (!enabled || running) {
+            return;
+        }
+        running = true;
+        listener = new Thread(this::listen, "Longpoll");
+        listener.setDaemon(true);
+        listener.start();
+        log.info(String.format("Listening to the dropbox changes, longpoll of %d seconds", timeoutSeconds));
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (listener != null) {
+            listener.interrupt();
+            listener = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void listen() {
+        while (running) {
+            try {
+                Optional<String> cursor = esRepo.findSyncCursor();
+                if (cursor.isEmpty()) {
+                    pause(retrySeconds);
+                    continue;
+                }
+                DropboxLongpoll longpoll = dbRepo.waitForDropboxChanges(cursor.get(), timeoutSeconds);
+                // a reset cursor is replaced by the full listing the synchronization falls back to
+                if ((longpoll.isChanges() || longpoll.isReset()) && running) {
+                    fileSync.syncChanges();
+                }
+                if (longpoll.getBackoffSeconds() > 0) {
+                    pause(longpoll.getBackoffSeconds());
+                }
+            } catch (RuntimeException ex) {
+                // whatever fails, the listener thread keeps running
+                log.warn(String.format("Listening to the dropbox changes failed, retry in %d seconds", retrySeconds), ex);
+                pause(retrySeconds);
+            }
+        }
+    }
+
+    private void pause(long seconds) {
+        try {
+            TimeUnit.SECONDS.sleep(seconds);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.DropboxRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Full listing of the dropbox account, partitioned by the top level folders.
+ * Every top level folder is one recursive listing, at most the configured number of them run at once,
+ * so the number of requests in flight against dropbox stays bounded.
+ */
+@Slf4j
+@Service
+public class DropboxCrawler {
+
+    @Value("${dropbox.crawler.parallelism:4}")
+    private int parallelism;
+
+    private final DropboxRepo dbRepo;
+    private final ThreadFactory threadFactory;
+
+    @Autowired
+    public DropboxCrawler(DropboxRepo dbRepo, @Qualifier("crawlerThreadFactory") ThreadFactory threadFactory) {
+        this.dbRepo = dbRepo;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * The consumer is called concurrently from the crawler threads.
+     *
+     * @return the cursor for the following incremental synchronizations, it is taken before the listing,
+     * so whatever changes while crawling is replayed by the next delta
+     */
+    public String crawl(Consumer<FileInfo> consumer) {
+        String cursor = dbRepo.findLatestCursor();
+        List<String> folders = dbRepo.findRootFolders(consumer);
+        int threads = Math.max(1, Math.min(parallelism, folders.size()));
+        log.info(String.format("Crawling %d dropbox folders with %d threads...", folders.size(), threads));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, threadFactory);
+        try {
+            List<Future<?>> listings = folders.stream()
+                    .map(folder -> executor.submit(() -> dbRepo.findAllDropboxFiles(folder, consumer)))
+                    .collect(Collectors.toList());
+            for (Future<?> listing : listings) {
+                listing.get();
+            }
+            return cursor;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Critical error in dropbox", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Critical error in dropbox", ex);
+        } finally {
+            // the remaining listings are useless once one of them failed
+            executor.shutdownNow();
+        }
+    }
+
+}
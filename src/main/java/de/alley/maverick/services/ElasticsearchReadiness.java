@@ -0,0 +1,131 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.repositories.ElasticsearchIndexRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.cluster.health.ClusterHealthStatus;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+
+/**
+ * Waits for elasticsearch without holding up the startup.
+ * The cluster health is probed in the background, at once and then with an exponential backoff. As soon as
+ * the cluster is at least yellow, the index is initialized on the same thread, which can take a whole reindex,
+ * and the first synchronization is started. Until then the health of the application is out of service.
+ */
+@Slf4j
+@Service
+public class ElasticsearchReadiness implements SmartLifecycle, HealthIndicator {
+
+    private final RestHighLevelClient esClient;
+    private final ElasticsearchIndexRepo indexRepo;
+    private final StarterSynchronizer starterSynchronizer;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private volatile boolean running;
+    private volatile boolean ready;
+    private volatile int attempts;
+    private volatile String lastFailure;
+    private volatile Thread prober;
+
+    @Autowired
+    public ElasticsearchReadiness(RestHighLevelClient esClient, ElasticsearchIndexRepo indexRepo,
+                                  StarterSynchronizer starterSynchronizer,
+                                  @Value("${elasticsearch.readiness.initialBackoffMillis:500}") long initialBackoffMillis,
+                                  @Value("${elasticsearch.readiness.maxBackoffMillis:30000}") long maxBackoffMillis) {
+        this.esClient = esClient;
+        this.indexRepo = indexRepo;
+        this.starterSynchronizer = starterSynchronizer;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        prober = new Thread(this::awaitElasticsearch, "Readiness");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        running = false;
+        if (prober != null) {
+            prober.interrupt();
+            prober = null;
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder health = ready ? Health.up() : Health.outOfService();
+        health.withDetail("attempts", attempts);
+        if (!ready && lastFailure != null) {
+            health.withDetail("lastFailure", lastFailure);
+        }
+        return health.build();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void awaitElasticsearch() {
+        long backoff = initialBackoffMillis;
+        while (running && !probe()) {
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(maxBackoffMillis, backoff * 2);
+        }
+    }
+
+    /**
+     * @return true once elasticsearch is ready and the first synchronization is started
+     */
+    private boolean probe() {
+        attempts++;
+        try {
+            ClusterHealthResponse response = esClient.cluster().health(new ClusterHealthRequest(), RequestOptions.DEFAULT);
+            if (response.getStatus() == ClusterHealthStatus.RED) {
+                lastFailure = String.format("cluster %s is red", response.getClusterName());
+                log.info(String.format("Elasticsearch is not ready after %d attempts, %s", attempts, lastFailure));
+                return false;
+            }
+            indexRepo.initIndex();
+            ready = true;
+            log.info(String.format("Elasticsearch is ready after %d attempts, cluster %s is %s", attempts,
+                    response.getClusterName(), response.getStatus()));
+        } catch (ElasticsearchException | IllegalStateException | IOException ex) {
+            lastFailure = ex.getMessage();
+            log.info(String.format("Elasticsearch is not ready after %d attempts, %s", attempts, lastFailure));
+            return false;
+        }
+        starterSynchronizer.syncFiles();
+        return true;
+    }
+
+}
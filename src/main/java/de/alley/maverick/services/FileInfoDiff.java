@@ -0,0 +1,103 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import de.alley.maverick.repositories.FileInfoBulkWriter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Diff of the listed dropbox files against the index, chunk by chunk.
+ * The new files and the files with changed metadata are written, as upserts keeping the tags.
+ * All listed files are stamped with the synchronization run, the files without the stamp are the vanished ones.
+ * It is called concurrently by the crawler threads.
+ */
+@Slf4j
+class FileInfoDiff implements Consumer<FileInfo>, Closeable {
+
+    private final ElasticsearchRepo esRepo;
+    private final FileInfoBulkWriter writer;
+    private final int chunkSize;
+    private final long syncRun;
+
+    private final Set<String> changedIds = ConcurrentHashMap.newKeySet();
+    private final AtomicLong unchanged = new AtomicLong();
+    private List<FileInfo> chunk = new ArrayList<>();
+
+    FileInfoDiff(ElasticsearchRepo esRepo, FileInfoBulkWriter writer, int chunkSize, long syncRun) {
+        this.esRepo = esRepo;
+        this.writer = writer;
+        this.chunkSize = chunkSize;
+        this.syncRun = syncRun;
+    }
+
+    @Override
+    public void accept(FileInfo fileInfo) {
+        List<FileInfo> full = null;
+        synchronized (this) {
+            chunk.add(fileInfo);
+            if (chunk.size() >= chunkSize) {
+                full = chunk;
+                chunk = new ArrayList<>();
+            }
+        }
+        if (full != null) {
+            diff(full);
+        }
+    }
+
+    private void diff(List<FileInfo> files) {
+        Map<String, FileInfo> indexed = esRepo.findElasticsearchRecordsByIds(
+                files.stream().map(FileInfo::getId).collect(Collectors.toList()));
+        for (FileInfo file : files) {
+            if (isSameMetadata(indexed.get(file.getId()), file)) {
+                unchanged.incrementAndGet();
+                writer.stamp(file.getId(), syncRun);
+            } else {
+                writer.upsert(file, syncRun);
+                changedIds.add(file.getId());
+            }
+        }
+    }
+
+    private static boolean isSameMetadata(FileInfo indexed, FileInfo listed) {
+        return indexed != null
+                && Objects.equals(indexed.getRev(), listed.getRev())
+                && Objects.equals(indexed.getPath(), listed.getPath())
+                && Objects.equals(indexed.getName(), listed.getName())
+                && Objects.equals(indexed.getSize(), listed.getSize());
+    }
+
+    /**
+     * Diffs the last incomplete chunk.
+     */
+    @Override
+    public void close() {
+        List<FileInfo> rest;
+        synchronized (this) {
+            rest = chunk;
+            chunk = new ArrayList<>();
+        }
+        if (!rest.isEmpty()) {
+            diff(rest);
+        }
+    }
+
+    Set<String> getChangedIds() {
+        return changedIds;
+    }
+
+    long getUnchanged() {
+        return unchanged.get();
+    }
+}
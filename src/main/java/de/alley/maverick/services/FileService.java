@@ -1,72 +1,272 @@
 package de.alley.maverick.services;
 
 import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.FilePage;
+import de.alley.maverick.protocol.FileQuery;
+import de.alley.maverick.protocol.TagCount;
+import de.alley.maverick.protocol.TagOperationForm;
+import de.alley.maverick.protocol.TagOperationResult;
 import de.alley.maverick.repositories.DropboxRepo;
+import de.alley.maverick.repositories.ElasticsearchAsyncRepo;
 import de.alley.maverick.repositories.ElasticsearchRepo;
 import de.alley.maverick.repositories.Mode;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.env.Environment;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Service
 public class FileService {
 
+    private static final int EXPORT_PAGE_SIZE = 1000;
+
     @Value("dropbox.direct")
     private String dropboxDirect;
 
+    @Value("${search.dropbox.deadlineMillis:300}")
+    private long dropboxDeadlineMillis;
+
+    @Value("${search.dropbox.maxResults:1000}")
+    private int dropboxMaxResults;
+
     @Autowired
     private Environment env;
 
     private final ElasticsearchRepo esRepo;
+    private final ElasticsearchAsyncRepo esAsyncRepo;
     private final DropboxRepo dbRepo;
     private final FilesSynchronizer sync;
+    private final ExpiringCache<String, FileInfo> fileCache;
+    private final ExpiringCache<String, Boolean> missingFileCache;
+    private final TaskExecutor lookupExecutor;
+    private final SingleFlight<String, Optional<FileInfo>> dropboxLookups = new SingleFlight<>();
+    private final MeterRegistry meterRegistry;
 
     @Autowired
-    public FileService(ElasticsearchRepo esRepo, DropboxRepo dbRepo, FilesSynchronizer sync) {
+    public FileService(ElasticsearchRepo esRepo, ElasticsearchAsyncRepo esAsyncRepo, DropboxRepo dbRepo,
+                       FilesSynchronizer sync, ExpiringCache<String, FileInfo> fileCache,
+                       ExpiringCache<String, Boolean> missingFileCache,
+                       @Qualifier("lookupTaskExecutor") TaskExecutor lookupExecutor, MeterRegistry meterRegistry) {
         this.esRepo = esRepo;
+        this.esAsyncRepo = esAsyncRepo;
         this.dbRepo = dbRepo;
         this.sync = sync;
+        this.fileCache = fileCache;
+        this.missingFileCache = missingFileCache;
+        this.lookupExecutor = lookupExecutor;
+        this.meterRegistry = meterRegistry;
     }
 
-    public Optional<FileInfo> findById(String fileId) {
-        Optional<FileInfo> result = esRepo.findElasticsearchRecordById(fileId);
-        if (result.isEmpty()) {
-            Optional<FileInfo> dbFile = dbRepo.findDropboxFileById(fileId);
-            log.debug(String.format("The file %s has been found in dropbox", fileId));
-            if (dbFile.isPresent()) {
-                esRepo.createElasticsearchRecordIfNotExists(dbFile.get());
-                result = esRepo.findElasticsearchRecordById(fileId);
+    public CompletableFuture<Optional<FileInfo>> findById(String fileId) {
+        Optional<FileInfo> cached = fileCache.get(fileId);
+        if (cached.isPresent()) {
+            countLookup("cache");
+            return CompletableFuture.completedFuture(cached);
+        }
+        return loadById(fileId);
+    }
+
+    private CompletableFuture<Optional<FileInfo>> loadById(String fileId) {
+        return esAsyncRepo.findElasticsearchRecordById(fileId).thenCompose(result -> {
+            if (result.isPresent()) {
+                countLookup("elasticsearch");
+                return CompletableFuture.completedFuture(result);
+            }
+            if (missingFileCache.get(fileId).isPresent()) {
+                log.debug(String.format("The file %s is known to be missing in dropbox", fileId));
+                countLookup("missing");
+                return CompletableFuture.completedFuture(Optional.<FileInfo>empty());
             }
+            // dropbox is blocking, it is never called on the elasticsearch threads, a full lookup executor is a 503
+            // concurrent lookups of the same file share one dropbox call and one elasticsearch create
+            return dropboxLookups.execute(fileId,
+                    () -> CompletableFuture.supplyAsync(() -> loadFromDropbox(fileId), lookupExecutor));
+        }).thenApply(result -> {
+            result.ifPresent(f -> fileCache.put(fileId, f));
+            return result;
+        });
+    }
+
+    /**
+     * Where the file lookups are answered: cache, elasticsearch, dropbox or missing.
+     */
+    private void countLookup(String source) {
+        meterRegistry.counter("files.lookups", "source", source).increment();
+    }
+
+    private Optional<FileInfo> loadFromDropbox(String fileId) {
+        Optional<FileInfo> dbFile = dbRepo.findDropboxFileById(fileId);
+        if (dbFile.isEmpty()) {
+            missingFileCache.put(fileId, Boolean.TRUE);
+            countLookup("missing");
+            return Optional.empty();
         }
-        return result;
+        countLookup("dropbox");
+        log.debug(String.format("The file %s has been found in dropbox", fileId));
+        esRepo.createElasticsearchRecordIfNotExists(dbFile.get());
+        return esRepo.findElasticsearchRecordById(fileId);
     }
 
-    public Optional<FileInfo> resetTags(String fileId, List<String> tags) {
-        Optional<FileInfo> file = findById(fileId);
-        return file.flatMap(f -> esRepo.updateElasticsearchRecord(f, tags, Mode.RESET));
+    public CompletableFuture<Optional<FileInfo>> resetTags(String fileId, List<String> tags) {
+        return updateTags(fileId, tags, Mode.RESET);
     }
 
-    public Optional<FileInfo> mergeTags(String fileId, List<String> tags) {
-        Optional<FileInfo> file = findById(fileId);
-        return file.flatMap(f -> esRepo.updateElasticsearchRecord(f, tags, Mode.MERGE));
+    public CompletableFuture<Optional<FileInfo>> mergeTags(String fileId, List<String> tags) {
+        return updateTags(fileId, tags, Mode.MERGE);
     }
 
-    public Optional<FileInfo> deleteTags(String fileId, List<String> tags) {
-        Optional<FileInfo> file = findById(fileId);
-        return file.flatMap(f -> esRepo.updateElasticsearchRecord(f, tags, Mode.DELETE));
+    public CompletableFuture<Optional<FileInfo>> deleteTags(String fileId, List<String> tags) {
+        return updateTags(fileId, tags, Mode.DELETE);
+    }
+
+    private CompletableFuture<Optional<FileInfo>> updateTags(String fileId, List<String> tags, Mode mode) {
+        return esAsyncRepo.updateElasticsearchRecord(fileId, tags, mode).thenCompose(updated -> {
+            if (updated.isPresent()) {
+                return CompletableFuture.completedFuture(updated);
+            }
+            // not synchronized from dropbox yet
+            return loadById(fileId).thenCompose(found -> found.isPresent()
+                    ? esAsyncRepo.updateElasticsearchRecord(fileId, tags, mode)
+                    : CompletableFuture.completedFuture(Optional.<FileInfo>empty()));
+        }).thenApply(updated -> updated.map(this::cache));
     }
 
-    public List<FileInfo> search(String fileName) {
-        if (Boolean.parseBoolean(env.getProperty("DROPBOX_DIRECT", dropboxDirect))) {
-            List<FileInfo> dbRes = dbRepo.findDropboxFilesByName(fileName);
-            esRepo.createElasticSearchRecordsIfNotExists(dbRes);
+    public CompletableFuture<List<TagOperationResult>> updateTags(List<TagOperationForm> operations) {
+        return esAsyncRepo.updateElasticsearchRecords(operations)
+                .thenCompose(results -> retryNotFound(operations, results))
+                .thenApply(results -> {
+                    results.stream().map(TagOperationResult::getFile).filter(Objects::nonNull).forEach(this::cache);
+                    return results;
+                });
+    }
+
+    /**
+     * The files not synchronized from dropbox yet are looked up concurrently and retried once they are found there.
+     */
+    private CompletableFuture<List<TagOperationResult>> retryNotFound(List<TagOperationForm> operations,
+                                                                      List<TagOperationResult> results) {
+        List<Integer> notFound = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).getStatus() == HttpStatus.NOT_FOUND.value()) {
+                notFound.add(i);
+            }
+        }
+        if (notFound.isEmpty()) {
+            return CompletableFuture.completedFuture(results);
         }
-        return esRepo.findByPartName(fileName);
+        List<CompletableFuture<Optional<FileInfo>>> lookups = notFound.stream()
+                .map(i -> loadById(operations.get(i).getFileId()))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(lookups.toArray(new CompletableFuture[0])).thenCompose(done -> {
+            List<Integer> retries = new ArrayList<>();
+            for (int i = 0; i < notFound.size(); i++) {
+                if (lookups.get(i).join().isPresent()) {
+                    retries.add(notFound.get(i));
+                }
+            }
+            if (retries.isEmpty()) {
+                return CompletableFuture.completedFuture(results);
+            }
+            return esAsyncRepo.updateElasticsearchRecords(retries.stream().map(operations::get).collect(Collectors.toList()))
+                    .thenApply(retried -> {
+                        for (int i = 0; i < retries.size(); i++) {
+                            results.set(retries.get(i), retried.get(i));
+                        }
+                        return results;
+                    });
+        });
+    }
+
+    private FileInfo cache(FileInfo fileInfo) {
+        fileCache.put(fileInfo.getId(), fileInfo);
+        return fileInfo;
+    }
+
+    /**
+     * @throws IllegalArgumentException when the cursor is not valid
+     */
+    public CompletableFuture<FilePage> search(FileQuery fileQuery, int limit, String cursor) {
+        // the following pages continue from the first one, no need to ask dropbox again
+        // the files unknown to elasticsearch have no tags, they cannot match tag conditions
+        if (cursor == null && fileQuery.getFileName() != null && !fileQuery.getFileName().isEmpty()
+                && fileQuery.getTags().isEmpty() && fileQuery.getAnyTags().isEmpty()
+                && Boolean.parseBoolean(env.getProperty("DROPBOX_DIRECT", dropboxDirect))) {
+            return hybridSearch(fileQuery, limit);
+        }
+        return esAsyncRepo.findByQuery(fileQuery, limit, cursor);
+    }
+
+    /**
+     * Elasticsearch and dropbox are asked concurrently. The dropbox matches found within the deadline are merged
+     * into the first page, the later ones are dropped from the response.
+     * All of them are indexed in the background, so the following searches find them in elasticsearch.
+     */
+    private CompletableFuture<FilePage> hybridSearch(FileQuery fileQuery, int limit) {
+        CompletableFuture<FilePage> esPage = esAsyncRepo.findByQuery(fileQuery, limit, null);
+        CompletableFuture<List<FileInfo>> dbFiles = CompletableFuture.supplyAsync(
+                () -> dbRepo.findDropboxFilesByName(fileQuery.getFileName(), dropboxMaxResults), lookupExecutor);
+        dbFiles.thenAcceptAsync(esRepo::createElasticSearchRecordsIfNotExists, lookupExecutor)
+                .exceptionally(ex -> {
+                    log.warn(String.format("Cannot index the dropbox matches of %s", fileQuery.getFileName()), ex);
+                    return null;
+                });
+        CompletableFuture<List<FileInfo>> dbFilesInTime = dbFiles
+                .exceptionally(ex -> new ArrayList<>())
+                .completeOnTimeout(new ArrayList<>(), dropboxDeadlineMillis, TimeUnit.MILLISECONDS);
+        return esPage.thenCombine(dbFilesInTime, (page, found) -> merge(page, found, fileQuery.getFileName(), limit));
+    }
+
+    private FilePage merge(FilePage page, List<FileInfo> dbFiles, String fileName, int limit) {
+        String part = fileName.toLowerCase(Locale.ROOT);
+        Set<String> ids = page.getFiles().stream().map(FileInfo::getId).collect(Collectors.toSet());
+        // dropbox search is not a substring match, only the files elasticsearch would have found are added
+        List<FileInfo> added = dbFiles.stream()
+                .filter(f -> !ids.contains(f.getId()) && f.getName().toLowerCase(Locale.ROOT).contains(part))
+                .collect(Collectors.toList());
+        if (added.isEmpty()) {
+            return page;
+        }
+        List<FileInfo> merged = new ArrayList<>(page.getFiles());
+        merged.addAll(added);
+        merged.sort(Comparator.comparing(FileInfo::getName).thenComparing(FileInfo::getId));
+        if (merged.size() <= limit) {
+            return FilePage.builder().files(merged).nextCursor(page.getNextCursor()).build();
+        }
+        List<FileInfo> files = new ArrayList<>(merged.subList(0, limit));
+        return FilePage.builder().files(files).nextCursor(esRepo.encodeCursor(files.get(limit - 1))).build();
+    }
+
+    public CompletableFuture<List<TagCount>> countTags(FileQuery fileQuery, int size) {
+        return esAsyncRepo.countTags(fileQuery, size);
+    }
+
+    public long export(FileQuery fileQuery, Consumer<FileInfo> consumer) {
+        long exported = 0;
+        String cursor = null;
+        do {
+            FilePage page = esRepo.findByQuery(fileQuery, EXPORT_PAGE_SIZE, cursor);
+            page.getFiles().forEach(consumer);
+            exported += page.getFiles().size();
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return exported;
     }
 }
@@ -1,35 +1,265 @@
 package de.alley.maverick.services;
 
 import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.DropboxChanges;
 import de.alley.maverick.repositories.DropboxRepo;
+import de.alley.maverick.repositories.ElasticsearchIndexRepo;
 import de.alley.maverick.repositories.ElasticsearchRepo;
+import de.alley.maverick.repositories.FileInfoBulkWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 @Slf4j
 @EnableAsync
 @Service
 public class FilesSynchronizer {
 
+    @Value("${synchronizer.delta:true}")
+    private boolean delta;
+
+    @Value("${synchronizer.diffChunkSize:500}")
+    private int diffChunkSize;
+
+    /**
+     * The number of tagged files not listed anymore which are looked up in dropbox at the same time.
+     */
+    @Value("${synchronizer.confirmConcurrency:4}")
+    private int confirmConcurrency;
+
     private final ElasticsearchRepo esRepo;
+    private final ElasticsearchIndexRepo indexRepo;
     private final DropboxRepo dbRepo;
+    private final DropboxCrawler crawler;
+    private final ExpiringCache<String, FileInfo> fileCache;
+    private final ExpiringCache<String, Boolean> missingFileCache;
+    private final MeterRegistry meterRegistry;
+    private final ReentrantLock runLock = new ReentrantLock();
 
     @Autowired
-    public FilesSynchronizer(ElasticsearchRepo esRepo, DropboxRepo dbRepo) {
+    public FilesSynchronizer(ElasticsearchRepo esRepo, ElasticsearchIndexRepo indexRepo, DropboxRepo dbRepo,
+                             DropboxCrawler crawler, ExpiringCache<String, FileInfo> fileCache,
+                             ExpiringCache<String, Boolean> missingFileCache, MeterRegistry meterRegistry) {
         this.esRepo = esRepo;
+        this.indexRepo = indexRepo;
         this.dbRepo = dbRepo;
+        this.crawler = crawler;
+        this.fileCache = fileCache;
+        this.missingFileCache = missingFileCache;
+        this.meterRegistry = meterRegistry;
     }
 
+    /**
+     * Skipped while another run is in progress, that run or the longpoll catches up with the changes.
+     */
     @Async("threadPoolTaskExecutor")
     public void asyncFiles() {
-        List<FileInfo> dbFiles = dbRepo.findAllDropboxFiles();
-        esRepo.createElasticSearchRecordsIfNotExists(dbFiles);
-        log.info("Synchronization is finished...");
+        runUnlessRunning("delta", this::syncChanges);
+    }
+
+    /**
+     * Skipped while another run is in progress, the next reconciliation is the following day.
+     */
+    @Async("threadPoolTaskExecutor")
+    public void asyncReconcile() {
+        runUnlessRunning("full", this::syncAll);
+    }
+
+    private void runUnlessRunning(String mode, Runnable run) {
+        if (!runLock.tryLock()) {
+            log.warn(String.format("Synchronization is in progress, the %s run is skipped", mode));
+            meterRegistry.counter("synchronizer.runs.skipped", "mode", mode).increment();
+            return;
+        }
+        try {
+            run.run();
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    /**
+     * Applies the changes since the saved cursor, or lists everything when there is no usable cursor.
+     * The runs are serialized, they share the cursor.
+     */
+    public void syncChanges() {
+        runLock.lock();
+        try {
+            applyChangesSinceCursor();
+        } finally {
+            runLock.unlock();
+        }
+    }
+
+    private void applyChangesSinceCursor() {
+        indexRepo.initIndex();
+        if (delta) {
+            Optional<String> cursor = esRepo.findSyncCursor();
+            if (cursor.isPresent()) {
+                Timer.Sample run = Timer.start(meterRegistry);
+                String outcome = "error";
+                try {
+                    DropboxChanges changes = dbRepo.findDropboxChanges(cursor.get());
+                    outcome = "reset";
+                    if (!changes.isReset()) {
+                        applyChanges(changes);
+                        esRepo.refresh();
+                        esRepo.saveSyncCursor(changes.getCursor());
+                        countFiles("changed", changes.getFiles().size());
+                        countFiles("deleted", changes.getDeletedPaths().size());
+                        outcome = "success";
+                        log.info(String.format("Synchronization is finished, %d changed and %d deleted...",
+                                changes.getFiles().size(), changes.getDeletedPaths().size()));
+                        return;
+                    }
+                } finally {
+                    run.stop(runTimer("delta", outcome));
+                }
+            }
+        }
+        syncAll();
+    }
+
+    /**
+     * Lists the whole account and reconciles the index with it.
+     * The changed files are upserted, the files not listed anymore are deleted.
+     */
+    public void syncAll() {
+        runLock.lock();
+        Timer.Sample run = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            listAll();
+            outcome = "success";
+        } finally {
+            run.stop(runTimer("full", outcome));
+            runLock.unlock();
+        }
+    }
+
+    /**
+     * Every listed file is stamped with the run, the files without the stamp afterwards are not listed anymore.
+     * The sweep keeps nothing per file on the heap but the tagged files to confirm.
+     */
+    private void listAll() {
+        indexRepo.initIndex();
+        long syncRun = System.currentTimeMillis();
+        String cursor;
+        long submitted;
+        long deleted;
+        FileInfoDiff diff;
+        esRepo.suspendRefresh();
+        try {
+            try (FileInfoBulkWriter writer = esRepo.openBulkWriter()) {
+                try (FileInfoDiff listed = new FileInfoDiff(esRepo, writer, diffChunkSize, syncRun)) {
+                    diff = listed;
+                    cursor = crawler.crawl(listed);
+                }
+                submitted = writer.getSubmitted();
+            }
+            // only after a complete listing, a failed one would sweep everything it has not reached
+            esRepo.refresh();
+            deleted = esRepo.deleteUntaggedRecordsNotSynced(syncRun);
+            List<String> candidates = new ArrayList<>();
+            esRepo.scanTaggedRecordsNotSynced(syncRun, indexed -> candidates.add(indexed.getId()));
+            List<String> vanished = confirmVanished(candidates);
+            try (FileInfoBulkWriter writer = esRepo.openBulkWriter()) {
+                vanished.forEach(writer::delete);
+            }
+            deleted += vanished.size();
+        } finally {
+            esRepo.resumeRefresh();
+        }
+        diff.getChangedIds().forEach(fileCache::invalidate);
+        diff.getChangedIds().forEach(missingFileCache::invalidate);
+        if (deleted > 0) {
+            // the untagged files are deleted by query, their ids are not known
+            fileCache.invalidateIf(cached -> true);
+        }
+        esRepo.saveSyncCursor(cursor);
+        countFiles("changed", diff.getChangedIds().size());
+        countFiles("unchanged", diff.getUnchanged());
+        countFiles("deleted", deleted);
+        log.info(String.format("Synchronization is finished, %d changed, %d unchanged and %d deleted, %d writes...",
+                diff.getChangedIds().size(), diff.getUnchanged(), deleted, submitted));
+    }
+
+    private Timer runTimer(String mode, String outcome) {
+        return Timer.builder("synchronizer.runs").tag("mode", mode).tag("outcome", outcome).register(meterRegistry);
+    }
+
+    private void countFiles(String action, long files) {
+        meterRegistry.counter("synchronizer.files", "action", action).increment(files);
+    }
+
+    /**
+     * A file created on read after the listing has started is not listed.
+     * The tags cannot be restored, so a tagged file is dropped only when dropbox confirms it is gone.
+     * An untagged one comes back with the next delta. The lookups run in parallel, bounded by the concurrency.
+     *
+     * @return the candidates gone from dropbox
+     */
+    private List<String> confirmVanished(List<String> candidates) {
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int threads = Math.max(1, Math.min(confirmConcurrency, candidates.size()));
+        log.info(String.format("Confirming %d tagged files not listed with %d threads...", candidates.size(), threads));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("Confirm-"));
+        try {
+            List<Future<Boolean>> lookups = candidates.stream()
+                    .map(id -> executor.submit(() -> dbRepo.findDropboxFileById(id).isEmpty()))
+                    .collect(Collectors.toList());
+            List<String> vanished = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+                if (lookups.get(i).get()) {
+                    vanished.add(candidates.get(i));
+                }
+            }
+            return vanished;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException("Critical error in dropbox", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Critical error in dropbox", ex);
+        } finally {
+            // nothing is deleted once one of the lookups failed
+            executor.shutdownNow();
+        }
+    }
+
+    private void applyChanges(DropboxChanges changes) {
+        Set<String> changedIds = changes.getFiles().stream().map(FileInfo::getId).collect(Collectors.toSet());
+        // deletions go first, the remaining changes happened after them in the listing
+        esRepo.deleteElasticsearchRecordsByPaths(changes.getDeletedPaths(), changedIds);
+        try (FileInfoBulkWriter writer = esRepo.openBulkWriter()) {
+            changes.getFiles().forEach(writer::upsert);
+        }
+        changedIds.forEach(fileCache::invalidate);
+        changedIds.forEach(missingFileCache::invalidate);
+        changes.getDeletedPaths().forEach(deleted -> fileCache.invalidateIf(
+                f -> f.getPath().equals(deleted) || f.getPath().startsWith(deleted + "/")));
     }
 
 }
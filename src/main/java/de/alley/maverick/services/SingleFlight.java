@@ -0,0 +1,38 @@
+package de.alley.maverick.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key, only the first caller starts the call
+ * and the others get the same future, so nobody blocks a thread waiting for it.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            call.get().whenComplete((value, ex) -> {
+                inFlight.remove(key, own);
+                if (ex == null) {
+                    own.complete(value);
+                } else {
+                    own.completeExceptionally(ex);
+                }
+            });
+        } catch (RuntimeException ex) {
+            inFlight.remove(key, own);
+            own.completeExceptionally(ex);
+        }
+        return own;
+    }
+
+}
@@ -0,0 +1,53 @@
+package de.alley.maverick.web;
+
+import de.alley.maverick.protocol.DeadLetter;
+import de.alley.maverick.protocol.DeadLetterReplay;
+import de.alley.maverick.services.DeadLetterService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * The file writes refused by elasticsearch for good, and their replay.
+ */
+@RestController
+public class DeadLetterRestController {
+
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 1000;
+
+    private final DeadLetterService deadLetterService;
+
+    @Autowired
+    public DeadLetterRestController(DeadLetterService deadLetterService) {
+        this.deadLetterService = deadLetterService;
+    }
+
+    @GetMapping(path = "/dead-letters", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<DeadLetter>> findDeadLetters(
+            @RequestParam(value = "limit", required = false) final Integer limit) {
+        if (isNotValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(deadLetterService.findDeadLetters(limit == null ? DEFAULT_LIMIT : limit));
+    }
+
+    @PostMapping(path = "/dead-letters/replay", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<DeadLetterReplay> replay(
+            @RequestParam(value = "limit", required = false) final Integer limit) {
+        if (isNotValidLimit(limit)) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(deadLetterService.replay(limit == null ? DEFAULT_LIMIT : limit));
+    }
+
+    private static boolean isNotValidLimit(Integer limit) {
+        return limit != null && (limit < 1 || limit > MAX_LIMIT);
+    }
+}
@@ -1,18 +1,28 @@
 package de.alley.maverick.web;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import de.alley.maverick.protocol.FileInfo;
 import de.alley.maverick.protocol.FileInfoModelAssembler;
+import de.alley.maverick.protocol.FilePage;
+import de.alley.maverick.protocol.FileQuery;
+import de.alley.maverick.protocol.TagBatchForm;
+import de.alley.maverick.protocol.TagCount;
 import de.alley.maverick.protocol.TagForm;
+import de.alley.maverick.protocol.TagOperationForm;
+import de.alley.maverick.protocol.TagOperationResult;
 import de.alley.maverick.services.FileService;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.hateoas.CollectionModel;
 import org.springframework.hateoas.EntityModel;
+import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -20,12 +30,22 @@ import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.validation.Valid;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.linkTo;
@@ -35,82 +55,226 @@ import static org.springframework.hateoas.server.mvc.WebMvcLinkBuilder.methodOn;
 @RestController
 public class FileRestController {
 
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+    private static final int MAX_SEARCH_LIMIT = 1000;
+    private static final int UNPAGED_SEARCH_LIMIT = 10000;
+    private static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    private static final int MAX_TAG_OPERATIONS = 1000;
+    private static final int DEFAULT_TAG_FACET_SIZE = 100;
+    private static final int MAX_TAG_FACET_SIZE = 1000;
+
     private final FileService fileService;
     private final FileInfoModelAssembler fileAssembler;
+    private final ObjectMapper objectMapper;
 
     @Autowired
-    public FileRestController(FileService fileService, FileInfoModelAssembler fileAssembler) {
+    public FileRestController(FileService fileService, FileInfoModelAssembler fileAssembler, ObjectMapper objectMapper) {
         this.fileService = fileService;
         this.fileAssembler = fileAssembler;
+        this.objectMapper = objectMapper;
     }
 
+    /**
+     * Without a limit and a cursor all matches are returned as before the paging, up to the same 10000.
+     * More of them are continued by the next link, in pages of the max limit.
+     */
     @GetMapping(path = "/search", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<List<EntityModel<FileInfo>>> search(@RequestParam(value = "fileName",
-            required = false) final String fileName){
-        return ResponseEntity.ok(fileService.search(fileName)
-                .stream().map(fileAssembler::toModel).collect(Collectors.toList()));
+    public CompletableFuture<ResponseEntity<List<EntityModel<FileInfo>>>> search(
+            @RequestParam(value = "fileName", required = false) final String fileName,
+            @RequestParam(value = "tags", required = false) final List<String> tags,
+            @RequestParam(value = "anyTags", required = false) final List<String> anyTags,
+            @RequestParam(value = "notTags", required = false) final List<String> notTags,
+            @RequestParam(value = "limit", required = false) final Integer limit,
+            @RequestParam(value = "cursor", required = false) final String cursor){
+        FileQuery fileQuery = new FileQuery(fileName, tags, anyTags, notTags);
+        if (isNotValidQuery(fileQuery)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        if (limit != null && (limit < 1 || limit > MAX_SEARCH_LIMIT)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        int pageSize = limit != null ? limit : cursor != null ? DEFAULT_SEARCH_LIMIT : UNPAGED_SEARCH_LIMIT;
+        CompletableFuture<FilePage> page;
+        try {
+            page = fileService.search(fileQuery, pageSize, cursor);
+        } catch (IllegalArgumentException ex) {
+            log.debug(ex.getMessage());
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return page.thenApply(withRequest(p -> {
+            List<EntityModel<FileInfo>> body = p.getFiles()
+                    .stream().map(fileAssembler::toModel).collect(Collectors.toList());
+            if (p.getNextCursor() == null) {
+                return ResponseEntity.ok(body);
+            }
+            String nextLink = linkTo(methodOn(this.getClass())
+                    .search(fileName, tags, anyTags, notTags, Math.min(pageSize, MAX_SEARCH_LIMIT), p.getNextCursor()))
+                    .withRel(IanaLinkRelations.NEXT).toString();
+            return new ResponseEntity<>(body, createLinkHeader(nextLink), HttpStatus.OK);
+        }));
+    }
+
+    @GetMapping(path = "/search/export", produces = APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> export(
+            @RequestParam(value = "fileName", required = false) final String fileName,
+            @RequestParam(value = "tags", required = false) final List<String> tags,
+            @RequestParam(value = "anyTags", required = false) final List<String> anyTags,
+            @RequestParam(value = "notTags", required = false) final List<String> notTags){
+        FileQuery fileQuery = new FileQuery(fileName, tags, anyTags, notTags);
+        if (isNotValidQuery(fileQuery)) {
+            return ResponseEntity.badRequest().build();
+        }
+        ObjectWriter writer = objectMapper.writerFor(FileInfo.class);
+        StreamingResponseBody body = out -> fileService.export(fileQuery, f -> {
+            try {
+                out.write(writer.writeValueAsBytes(f));
+                out.write('\n');
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        return ResponseEntity.ok().contentType(MediaType.parseMediaType(APPLICATION_NDJSON_VALUE)).body(body);
+    }
+
+    @GetMapping(path = "/tags", produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<List<TagCount>>> countTags(
+            @RequestParam(value = "fileName", required = false) final String fileName,
+            @RequestParam(value = "tags", required = false) final List<String> tags,
+            @RequestParam(value = "anyTags", required = false) final List<String> anyTags,
+            @RequestParam(value = "notTags", required = false) final List<String> notTags,
+            @RequestParam(value = "size", required = false) final Integer size){
+        FileQuery fileQuery = new FileQuery(fileName, tags, anyTags, notTags);
+        int facetSize = size == null ? DEFAULT_TAG_FACET_SIZE : size;
+        if (isNotValidQuery(fileQuery) || facetSize < 1 || facetSize > MAX_TAG_FACET_SIZE) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return fileService.countTags(fileQuery, facetSize).thenApply(ResponseEntity::ok);
     }
 
     @GetMapping(path = "/{fileId}", produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<EntityModel<FileInfo>> getFileById(@Valid @PathVariable(name = "fileId") final String fileId){
+    public CompletableFuture<ResponseEntity<EntityModel<FileInfo>>> getFileById(@Valid @PathVariable(name = "fileId") final String fileId){
         if (isNotValidFileId(fileId)) {
-            return ResponseEntity.badRequest().build();
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
         }
-        return fileService.findById(fileId)
+        return fileService.findById(fileId).thenApply(withRequest(found -> found
                 .map(fileAssembler::toModel)
                 .map(ResponseEntity::ok)
-                .orElse(ResponseEntity.notFound().build());
+                .orElse(ResponseEntity.notFound().build())));
     }
 
     @PostMapping(path = "/{fileId}/tags", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<EntityModel<FileInfo>> resetTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
+    public CompletableFuture<ResponseEntity<EntityModel<FileInfo>>> resetTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
         if (isNotValidFileId(fileId) || isNotValidTags(tagForm)) {
-            return ResponseEntity.badRequest().build();
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
         }
-        return fileService.resetTags(fileId, tagForm.getTags())
+        return fileService.resetTags(fileId, tagForm.getTags()).thenApply(withRequest(updated -> updated
                 .map(fileAssembler::toModel)
                 .map(f -> createResponseCreated(f, linkTo(methodOn(this.getClass())
                         .getFileById(Objects.requireNonNull(f.getContent()).getId())).toString()))
-                .orElse(ResponseEntity.notFound().build());
+                .orElse(ResponseEntity.notFound().build())));
     }
 
     @PutMapping(path = "/{fileId}/tags", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Object> mergeTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
+    public CompletableFuture<ResponseEntity<Object>> mergeTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
         if (isNotValidFileId(fileId) || isNotValidTags(tagForm)) {
-            return ResponseEntity.badRequest().build();
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
         }
-        return fileService.mergeTags(fileId, tagForm.getTags())
+        return fileService.mergeTags(fileId, tagForm.getTags()).thenApply(updated -> updated
                 .map(f -> ResponseEntity.noContent().build())
-                .orElse(ResponseEntity.notFound().build());
+                .orElse(ResponseEntity.notFound().build()));
     }
 
     @DeleteMapping(path = "/{fileId}/tags", consumes = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity<Object> deleteTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
+    public CompletableFuture<ResponseEntity<Object>> deleteTags(@Valid @PathVariable(name = "fileId") final String fileId, @RequestBody TagForm tagForm) {
         if (isNotValidFileId(fileId) || isNotValidTags(tagForm)) {
-            return ResponseEntity.badRequest().build();
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
         }
-        return fileService.deleteTags(fileId, tagForm.getTags())
+        return fileService.deleteTags(fileId, tagForm.getTags()).thenApply(updated -> updated
                 .map(f -> ResponseEntity.noContent().build())
-                .orElse(ResponseEntity.notFound().build());
+                .orElse(ResponseEntity.notFound().build()));
     }
 
-    private boolean isNotValidFileId(String fileId) {
+    @PostMapping(path = "/tags", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
+    public CompletableFuture<ResponseEntity<List<TagOperationResult>>> updateTags(@RequestBody TagBatchForm tagBatchForm) {
+        if (isNotValidOperations(tagBatchForm)) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        return fileService.updateTags(tagBatchForm.getOperations()).thenApply(ResponseEntity::ok);
+    }
+
+    static boolean isNotValidFileId(String fileId) {
         return !fileId.matches("/(.|[\r\n])*|id:.*|(ns:[0-9]+(/.*)?)");
     }
 
+    /**
+     * The lookup executor is full, the client may retry later.
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Object> handleRejectedLookup(RejectedExecutionException ex) {
+        log.warn(String.format("Lookup rejected, %s", ex.getMessage()));
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+
     private boolean isNotValidTags(TagForm tagForm) {
         // parameter is null
-        if (tagForm == null || tagForm.getTags() == null) {
+        if (tagForm == null) {
+            return true;
+        }
+        return isNotValidTags(tagForm.getTags());
+    }
+
+    private boolean isNotValidTags(List<String> tags) {
+        // parameter is null
+        if (tags == null) {
             return true;
         }
         // some of tags are null or empty
-        for (String tag : tagForm.getTags()) {
+        for (String tag : tags) {
             if (tag == null || tag.isEmpty()) {
                 return true;
             }
         }
         // the tags are duplicated
-        return new HashSet<>(tagForm.getTags()).size() < tagForm.getTags().size();
+        return new HashSet<>(tags).size() < tags.size();
+    }
+
+    private boolean isNotValidQuery(FileQuery fileQuery) {
+        // some of tag conditions are empty or duplicated
+        return isNotValidTags(fileQuery.getTags()) || isNotValidTags(fileQuery.getAnyTags())
+                || isNotValidTags(fileQuery.getNotTags());
+    }
+
+    private boolean isNotValidOperations(TagBatchForm tagBatchForm) {
+        // parameter is null, empty or too large
+        if (tagBatchForm == null || tagBatchForm.getOperations().isEmpty()
+                || tagBatchForm.getOperations().size() > MAX_TAG_OPERATIONS) {
+            return true;
+        }
+        // some of operations are not complete or not valid
+        for (TagOperationForm operation : tagBatchForm.getOperations()) {
+            if (operation == null || operation.getMode() == null || operation.getFileId() == null
+                    || isNotValidFileId(operation.getFileId()) || isNotValidTags(operation.getTags())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The links are built from the current request, which is bound to the request thread only.
+     * The futures complete on the elasticsearch threads, so the request is bound there while the response is built.
+     */
+    private static <T, R> Function<T, R> withRequest(Function<T, R> mapper) {
+        HttpServletRequest request = ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+        return value -> {
+            RequestAttributes previous = RequestContextHolder.getRequestAttributes();
+            RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+            try {
+                return mapper.apply(value);
+            } finally {
+                RequestContextHolder.setRequestAttributes(previous);
+            }
+        };
     }
 
     private static HttpHeaders createLocationHeader(String locationHeaderLink) {
@@ -120,6 +284,13 @@ public class FileRestController {
         return headers;
     }
 
+    private static HttpHeaders createLinkHeader(String link) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaders.LINK, link);
+        headers.add("Access-Control-Expose-Headers", HttpHeaders.LINK);
+        return headers;
+    }
+
     private static ResponseEntity<EntityModel<FileInfo>> createResponseCreated(EntityModel<FileInfo> body, String locationHeaderLink) {
         HttpHeaders headers = createLocationHeader(locationHeaderLink);
         return new ResponseEntity<EntityModel<FileInfo>>(body, headers, HttpStatus.CREATED);
@@ -0,0 +1,95 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.DbxException;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.GetMetadataErrorException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The gateway against a local stub of dropbox answering every second request with a rate limit of one second.
+ */
+public class DropboxGatewayTest {
+
+    private static final String METADATA_PATH = "/2/files/get_metadata";
+    private static final int MAX_CONCURRENCY = 4;
+    private static final String FILE = "{\".tag\": \"file\", \"name\": \"file.txt\", \"id\": \"id:1\", "
+            + "\"path_lower\": \"/file.txt\", \"path_display\": \"/file.txt\", "
+            + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+            + "\"rev\": \"0123456789abcdef\", \"size\": 1}";
+
+    private DropboxStub dropboxStub;
+    private DbxClientV2 client;
+    private DropboxGateway gateway;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dropboxStub = new DropboxStub()
+                .endpoint(METADATA_PATH, (call, request) -> request.contains("missing") ? null : FILE)
+                .withRateLimit(2, 1);
+        client = dropboxStub.client();
+        gateway = new DropboxGateway(MAX_CONCURRENCY, 3, 0, 0, new RepositoryMetrics(new SimpleMeterRegistry()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dropboxStub.stop();
+    }
+
+    @Test
+    public void testRateLimitIsWaitedForAndRetried() throws DbxException {
+        getMetadata("/file.txt");
+        long start = System.currentTimeMillis();
+        getMetadata("/file.txt");
+        assertTrue(System.currentTimeMillis() - start >= 900, "the retry waits for the retry-after of dropbox");
+        assertEquals(1, dropboxStub.rateLimited());
+        assertEquals(1, gateway.getThrottles());
+        assertEquals(1, gateway.getRetries());
+        assertEquals(0, gateway.getFailures());
+        assertEquals(3, gateway.getCalls());
+    }
+
+    @Test
+    public void testRateLimitHalvesTheLimit() throws DbxException {
+        getMetadata("/file.txt");
+        assertEquals(MAX_CONCURRENCY, gateway.getLimit());
+        getMetadata("/file.txt");
+        assertEquals(MAX_CONCURRENCY / 2, gateway.getLimit());
+    }
+
+    @Test
+    public void testLimitRecoversWithSuccessfulCalls() throws DbxException {
+        getMetadata("/file.txt");
+        getMetadata("/file.txt");
+        dropboxStub.withRateLimit(0, 0);
+        for (int i = 0; i < 20; i++) {
+            getMetadata("/file.txt");
+        }
+        assertEquals(MAX_CONCURRENCY, gateway.getLimit());
+    }
+
+    @Test
+    public void testOtherErrorsLeaveTheLimitUnchanged() throws DbxException {
+        getMetadata("/file.txt");
+        getMetadata("/file.txt");
+        dropboxStub.withRateLimit(0, 0);
+        for (int i = 0; i < 20; i++) {
+            assertThrows(GetMetadataErrorException.class, () -> getMetadata("/missing.txt"));
+        }
+        assertEquals(MAX_CONCURRENCY / 2, gateway.getLimit());
+        assertEquals(1, gateway.getRetries(), "only the rate limit is retried, a missing file is not");
+    }
+
+    private void getMetadata(String path) throws DbxException {
+        gateway.execute("get_metadata", () -> client.files().getMetadata(path));
+    }
+
+}
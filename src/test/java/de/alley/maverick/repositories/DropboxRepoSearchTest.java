@@ -0,0 +1,81 @@
+package de.alley.maverick.repositories;
+
+import de.alley.maverick.protocol.FileInfo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The dropbox search against a local stub returning three pages of two matches.
+ */
+public class DropboxRepoSearchTest {
+
+    private static final String SEARCH_PATH = "/2/files/search_v2";
+    private static final String CONTINUE_PATH = "/2/files/search/continue_v2";
+
+    private DropboxStub dropboxStub;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dropboxStub = new DropboxStub()
+                .endpoint(SEARCH_PATH, call -> page(1, true))
+                .endpoint(CONTINUE_PATH, call -> page(call + 1, call < 2));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dropboxStub.stop();
+    }
+
+    @Test
+    public void testAllPagesAreReadUpToTheLast() {
+        List<FileInfo> files = dropboxStub.repo().findDropboxFilesByName("file", 100);
+        assertEquals(6, files.size());
+        assertEquals("id:6", files.get(5).getId());
+        assertEquals(2, dropboxStub.calls(CONTINUE_PATH));
+    }
+
+    @Test
+    public void testPagesArePulledOnlyWhenConsumed() {
+        try (Stream<FileInfo> files = dropboxStub.repo().searchDropboxFiles(DropboxSearch.byName("file", 100))) {
+            Iterator<FileInfo> iterator = files.iterator();
+            assertEquals(0, dropboxStub.calls(SEARCH_PATH));
+            iterator.next();
+            iterator.next();
+            assertEquals(1, dropboxStub.calls(SEARCH_PATH));
+            assertEquals(0, dropboxStub.calls(CONTINUE_PATH));
+            iterator.next();
+            assertEquals(1, dropboxStub.calls(CONTINUE_PATH));
+        }
+    }
+
+    @Test
+    public void testNoMorePagesArePulledThanTheMaxResults() {
+        List<FileInfo> files = dropboxStub.repo().searchDropboxFiles(DropboxSearch.byName("file", 3))
+                .collect(Collectors.toList());
+        assertEquals(3, files.size());
+        assertEquals(1, dropboxStub.calls(CONTINUE_PATH));
+    }
+
+    private static String page(int number, boolean hasMore) {
+        return "{\"matches\": [" + match(2 * number - 1) + ", " + match(2 * number) + "], "
+                + "\"has_more\": " + hasMore + ", \"cursor\": \"page-" + number + "\"}";
+    }
+
+    private static String match(int n) {
+        return "{\"metadata\": {\".tag\": \"metadata\", \"metadata\": {\".tag\": \"file\", "
+                + "\"name\": \"file-" + n + ".txt\", \"id\": \"id:" + n + "\", "
+                + "\"path_lower\": \"/file-" + n + ".txt\", \"path_display\": \"/file-" + n + ".txt\", "
+                + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+                + "\"rev\": \"0123456789abcdef\", \"size\": " + n + "}}}";
+    }
+
+}
@@ -0,0 +1,166 @@
+package de.alley.maverick.repositories;
+
+import com.dropbox.core.DbxHost;
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.http.StandardHttpRequestor;
+import com.dropbox.core.v2.DbxClientV2;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * A local stub of the dropbox api, every endpoint answers with the json body given for the n-th call and the request.
+ * The endpoint errors are answered with their json body, see {@link Responder}.
+ * The answers can be delayed and every n-th request rate limited, like dropbox under load.
+ */
+public class DropboxStub {
+
+    private static final String STUB_HOST = "dropbox.stub";
+    private static final String NOT_FOUND = "{\"error_summary\": \"path/not_found/\", "
+            + "\"error\": {\".tag\": \"path\", \"path\": {\".tag\": \"not_found\"}}}";
+    private static final String ERROR_SUMMARY = "\"error_summary\"";
+    private static final String TOO_MANY_REQUESTS = "{\"error_summary\": \"too_many_requests/\", "
+            + "\"error\": {\"reason\": {\".tag\": \"too_many_requests\"}, \"retry_after\": %d}}";
+
+    @FunctionalInterface
+    public interface Responder {
+        /**
+         * @return the json body, null when the requested path is not found.
+         * A body in the error format of dropbox, with an error_summary, is answered with 409
+         */
+        String respond(int call, String request);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rateLimited = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile int rateLimitEvery;
+    private volatile int retryAfterSeconds;
+
+    public DropboxStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public DropboxStub withLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param every every so many requests one gets a 429, never when it is zero
+     */
+    public DropboxStub withRateLimit(int every, int retryAfterSeconds) {
+        this.rateLimitEvery = every;
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    public DropboxStub endpoint(String path, IntFunction<String> bodyOfCall) {
+        return endpoint(path, (call, request) -> bodyOfCall.apply(call));
+    }
+
+    public DropboxStub endpoint(String path, Responder responder) {
+        AtomicInteger counter = calls.computeIfAbsent(path, p -> new AtomicInteger());
+        server.createContext(path, exchange -> {
+            String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            pause();
+            int status = 200;
+            String body;
+            int every = rateLimitEvery;
+            if (every > 0 && requests.incrementAndGet() % every == 0) {
+                rateLimited.incrementAndGet();
+                status = 429;
+                body = String.format(TOO_MANY_REQUESTS, retryAfterSeconds);
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(retryAfterSeconds));
+            } else {
+                body = responder.respond(counter.incrementAndGet(), request);
+                if (body == null) {
+                    status = 409;
+                    body = NOT_FOUND;
+                } else if (body.contains(ERROR_SUMMARY)) {
+                    status = 409;
+                }
+            }
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        return this;
+    }
+
+    private void pause() {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int calls(String path) {
+        AtomicInteger counter = calls.get(path);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public int rateLimited() {
+        return rateLimited.get();
+    }
+
+    public DbxClientV2 client() {
+        // dropbox builds the urls from a host without port, they are redirected to the stub speaking plain http
+        String stub = "http://localhost:" + server.getAddress().getPort();
+        HttpRequestor plainHttp = new HttpRequestor() {
+            @Override
+            public Response doGet(String url, Iterable<Header> headers) throws IOException {
+                return StandardHttpRequestor.INSTANCE.doGet(plain(url), headers);
+            }
+
+            @Override
+            public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+                return StandardHttpRequestor.INSTANCE.startPost(plain(url), headers);
+            }
+
+            @Override
+            public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+                return StandardHttpRequestor.INSTANCE.startPut(plain(url), headers);
+            }
+
+            private String plain(String url) {
+                return url.replaceFirst("^https://" + STUB_HOST, stub);
+            }
+        };
+        DbxRequestConfig config = DbxRequestConfig.newBuilder("alley-test").withHttpRequestor(plainHttp).build();
+        return new DbxClientV2(config, "stub-token", new DbxHost(STUB_HOST, STUB_HOST, STUB_HOST, STUB_HOST));
+    }
+
+    public DropboxRepo repo() {
+        DbxClientV2 client = client();
+        return new DropboxRepo(client, client, new DropboxGateway(1, 1, 0, 0, new RepositoryMetrics(new SimpleMeterRegistry())));
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+}
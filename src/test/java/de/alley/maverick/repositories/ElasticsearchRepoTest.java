@@ -0,0 +1,65 @@
+package de.alley.maverick.repositories;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.alley.maverick.protocol.FileInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The requests built for elasticsearch, without a cluster.
+ */
+public class ElasticsearchRepoTest {
+
+    private final ElasticsearchRepo esRepo = new ElasticsearchRepo(null, new ObjectMapper(),
+            new RepositoryMetrics(new SimpleMeterRegistry()), null);
+
+    @Test
+    public void testUpsertKeepsTheIndexedTags() {
+        FileInfo moved = FileInfo.builder()
+                .id("id:1")
+                .name("report.pdf")
+                .path("/new/report.pdf")
+                .size(440L)
+                .rev("rev1")
+                .tags(Collections.emptyList())
+                .build();
+        UpdateRequest request = esRepo.prepareUpsertRequest(moved);
+        Map<String, Object> doc = request.doc().sourceAsMap();
+        assertEquals("/new/report.pdf", doc.get("path"));
+        assertFalse(doc.containsKey("tags"), "the tags of the indexed file are not overwritten");
+        assertTrue(request.docAsUpsert());
+    }
+
+    @Test
+    public void testStampWritesOnlyTheSyncRun() {
+        UpdateRequest request = esRepo.prepareStampRequest("id:1", 42L);
+        Map<String, Object> doc = request.doc().sourceAsMap();
+        assertEquals(Collections.singleton("syncRun"), doc.keySet());
+        assertEquals(42L, ((Number) doc.get("syncRun")).longValue());
+        assertFalse(request.docAsUpsert(), "a file deleted meanwhile is not created again by its stamp");
+    }
+
+    @Test
+    public void testListedUpsertIsStampedWithoutTheTags() {
+        FileInfo listed = FileInfo.builder()
+                .id("id:1")
+                .name("report.pdf")
+                .path("/report.pdf")
+                .size(440L)
+                .rev("rev1")
+                .tags(Collections.singletonList("tag"))
+                .build();
+        Map<String, Object> doc = esRepo.prepareUpsertRequest(listed, 42L).doc().sourceAsMap();
+        assertEquals(42L, ((Number) doc.get("syncRun")).longValue());
+        assertFalse(doc.containsKey("tags"), "the tags of the indexed file are not overwritten");
+    }
+
+}
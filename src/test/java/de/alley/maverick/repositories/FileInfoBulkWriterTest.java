@@ -0,0 +1,78 @@
+package de.alley.maverick.repositories;
+
+import de.alley.maverick.protocol.FileInfo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.action.update.UpdateResponse;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The writer closes only when every record has been written, elasticsearch is replaced by the bulk consumer.
+ */
+public class FileInfoBulkWriterTest {
+
+    private final ElasticsearchRepo esRepo = mock(ElasticsearchRepo.class);
+
+    @Test
+    public void testCloseSucceedsWhenAllRecordsAreWritten() {
+        givenUpsertRequests();
+        FileInfoBulkWriter writer = givenWriter((request, listener) ->
+                listener.onResponse(updated(request)));
+        writer.upsert(FileInfo.builder().id("id:1").build());
+        writer.close();
+        assertEquals(1, writer.getSubmitted());
+        assertEquals(0, writer.getFailed());
+    }
+
+    @Test
+    public void testCloseFailsWhenRecordsHaveFailed() {
+        givenUpsertRequests();
+        FileInfoBulkWriter writer = givenWriter((request, listener) ->
+                listener.onFailure(new IOException("connection reset")));
+        writer.upsert(FileInfo.builder().id("id:1").build());
+        assertThrows(IllegalStateException.class, writer::close);
+        assertEquals(1, writer.getFailed());
+        verify(esRepo).parkDeadLetters(anyList());
+    }
+
+    private void givenUpsertRequests() {
+        when(esRepo.prepareUpsertRequest(any())).thenAnswer(invocation -> new UpdateRequest(ElasticsearchRepo.INDEX_NAME,
+                ((FileInfo) invocation.getArgument(0)).getId()).doc("{}", XContentType.JSON));
+    }
+
+    private static BulkResponse updated(BulkRequest request) {
+        ShardId shard = new ShardId(ElasticsearchRepo.INDEX_NAME, "_na_", 0);
+        BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.UPDATE, new UpdateResponse(shard, "_doc",
+                    request.requests().get(i).id(), 1, 1, 1, DocWriteResponse.Result.UPDATED));
+        }
+        return new BulkResponse(items, 1);
+    }
+
+    private FileInfoBulkWriter givenWriter(BiConsumer<BulkRequest, ActionListener<BulkResponse>> consumer) {
+        return new FileInfoBulkWriter(esRepo, consumer, new SimpleMeterRegistry(), BackoffPolicy.noBackoff(),
+                1000, 5, 0, 5);
+    }
+
+}
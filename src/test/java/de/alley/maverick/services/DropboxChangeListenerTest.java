@@ -0,0 +1,109 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.repositories.DropboxStub;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The listener against a local stub of the dropbox longpoll endpoint.
+ */
+@Slf4j
+public class DropboxChangeListenerTest {
+
+    private static final String LONGPOLL_PATH = "/2/files/list_folder/longpoll";
+
+    private DropboxStub dropboxStub;
+
+    private final ElasticsearchRepo esRepo = mock(ElasticsearchRepo.class);
+    private final FilesSynchronizer fileSync = mock(FilesSynchronizer.class);
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // one change, then quiet with a backoff
+        dropboxStub = new DropboxStub().endpoint(LONGPOLL_PATH,
+                call -> call == 1 ? "{\"changes\": true}" : "{\"changes\": false, \"backoff\": 1}");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dropboxStub.stop();
+    }
+
+    @Test
+    public void testChangesAreAppliedWhenDropboxSignalsThem() {
+        when(esRepo.findSyncCursor()).thenReturn(Optional.of("cursor"));
+        DropboxChangeListener listener = givenListener();
+        listener.start();
+        try {
+            verify(fileSync, timeout(5000).times(1)).syncChanges();
+            verify(fileSync, after(1500).times(1)).syncChanges();
+        } finally {
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void testResetCursorTriggersTheSynchronization() throws IOException {
+        dropboxStub.stop();
+        // the cursor is reset once, the synchronization lists everything and saves a new one
+        dropboxStub = new DropboxStub().endpoint(LONGPOLL_PATH, call -> call == 1
+                ? "{\"error_summary\": \"reset/..\", \"error\": {\".tag\": \"reset\"}}"
+                : "{\"changes\": false, \"backoff\": 1}");
+        when(esRepo.findSyncCursor()).thenReturn(Optional.of("cursor"));
+        DropboxChangeListener listener = givenListener();
+        listener.start();
+        try {
+            verify(fileSync, timeout(5000).times(1)).syncChanges();
+            verify(fileSync, after(1500).times(1)).syncChanges();
+        } finally {
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void testFailuresDoNotStopTheListener() {
+        // a failure other than dropbox, the listener retries after a second
+        when(esRepo.findSyncCursor()).thenThrow(new IllegalArgumentException("broken cursor"))
+                .thenReturn(Optional.of("cursor"));
+        DropboxChangeListener listener = givenListener();
+        listener.start();
+        try {
+            verify(fileSync, timeout(5000).times(1)).syncChanges();
+        } finally {
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void testNothingIsPolledWithoutCursor() {
+        when(esRepo.findSyncCursor()).thenReturn(Optional.empty());
+        DropboxChangeListener listener = givenListener();
+        listener.start();
+        try {
+            verify(fileSync, after(1500).never()).syncChanges();
+            assertEquals(0, dropboxStub.calls(LONGPOLL_PATH));
+        } finally {
+            listener.stop();
+        }
+    }
+
+    private DropboxChangeListener givenListener() {
+        return new DropboxChangeListener(esRepo, dropboxStub.repo(), fileSync, true, 30, 1);
+    }
+
+}
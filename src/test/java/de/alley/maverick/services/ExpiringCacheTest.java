@@ -0,0 +1,70 @@
+package de.alley.maverick.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The cache on a clock moved by hand.
+ */
+public class ExpiringCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final ExpiringCache<String, String> cache = new ExpiringCache<>(2, Duration.ofSeconds(10), clock::get);
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvictedWhenFull() {
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals(Optional.of("1"), cache.get("a"));
+        assertEquals(Optional.empty(), cache.get("b"));
+        assertEquals(Optional.of("3"), cache.get("c"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testEntriesExpireAfterTheTimeToLive() {
+        cache.put("a", "1");
+        advance(10);
+        assertEquals(Optional.of("1"), cache.get("a"), "valid up to the time to live");
+        advance(1);
+        assertEquals(Optional.empty(), cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testEntriesAreInvalidatedByValue() {
+        cache.put("a", "/folder/1");
+        cache.put("b", "/other/2");
+        cache.invalidateIf(path -> path.startsWith("/folder/"));
+        assertEquals(Optional.empty(), cache.get("a"));
+        assertEquals(Optional.of("/other/2"), cache.get("b"));
+        assertEquals(0, cache.getEvictions(), "an invalidation is not an eviction");
+    }
+
+    @Test
+    public void testHitsAndMissesAreCounted() {
+        cache.get("a");
+        cache.put("a", "1");
+        cache.get("a");
+        cache.get("a");
+        advance(11);
+        cache.get("a");
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    private void advance(long seconds) {
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+}
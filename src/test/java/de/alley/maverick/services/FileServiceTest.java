@@ -0,0 +1,183 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.FilePage;
+import de.alley.maverick.protocol.FileQuery;
+import de.alley.maverick.repositories.DropboxStub;
+import de.alley.maverick.repositories.ElasticsearchAsyncRepo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.Environment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The file lookups and the hybrid search against a local stub of dropbox answering after 300 ms.
+ * Elasticsearch is mocked and knows only what dropbox returned.
+ */
+public class FileServiceTest {
+
+    private static final String METADATA_PATH = "/2/files/get_metadata";
+    private static final String SEARCH_PATH = "/2/files/search_v2";
+    private static final String FILE_ID = "id:K59R_zjubxAAAAAAAAAAFx";
+    private static final String MISSING_ID = "id:missing";
+    private static final long MISSING_TTL_MILLIS = 300;
+
+    private DropboxStub dropboxStub;
+    private final ExecutorService lookupPool = Executors.newFixedThreadPool(4);
+
+    private final ElasticsearchRepo esRepo = mock(ElasticsearchRepo.class);
+    private final ElasticsearchAsyncRepo esAsyncRepo = mock(ElasticsearchAsyncRepo.class);
+    private final FilesSynchronizer fileSync = mock(FilesSynchronizer.class);
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dropboxStub = new DropboxStub()
+                .endpoint(METADATA_PATH, (call, request) -> request.contains(MISSING_ID) ? null : file(FILE_ID))
+                // not a substring search, other.txt is found as well
+                .endpoint(SEARCH_PATH, call -> "{\"matches\": [" + match("id:a", "transactions-a.txt") + ", "
+                        + match("id:b", "transactions-b.txt") + ", " + match("id:o", "other.txt") + "], "
+                        + "\"has_more\": false, \"cursor\": \"page-1\"}")
+                .withLatency(300);
+        when(esAsyncRepo.findElasticsearchRecordById(anyString()))
+                .thenReturn(CompletableFuture.completedFuture(Optional.empty()));
+        when(esRepo.findElasticsearchRecordById(FILE_ID))
+                .thenReturn(Optional.of(FileInfo.builder().id(FILE_ID).name("Transactions13").build()));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dropboxStub.stop();
+        lookupPool.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneDropboxCall() {
+        FileService fileService = givenFileService();
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<Optional<FileInfo>>> lookups = IntStream.range(0, 8)
+                    .mapToObj(i -> CompletableFuture.supplyAsync(() -> fileService.findById(FILE_ID), callers)
+                            .thenCompose(lookup -> lookup))
+                    .collect(Collectors.toList());
+            lookups.forEach(lookup -> assertEquals(FILE_ID, lookup.join().map(FileInfo::getId).orElse(null)));
+            assertEquals(1, dropboxStub.calls(METADATA_PATH));
+        } finally {
+            callers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMissingFilesAreNotAskedAgainUntilTheyExpire() throws InterruptedException {
+        FileService fileService = givenFileService();
+        assertTrue(fileService.findById(MISSING_ID).join().isEmpty());
+        assertTrue(fileService.findById(MISSING_ID).join().isEmpty());
+        assertEquals(1, dropboxStub.calls(METADATA_PATH));
+        Thread.sleep(MISSING_TTL_MILLIS + 100);
+        assertTrue(fileService.findById(MISSING_ID).join().isEmpty());
+        assertEquals(2, dropboxStub.calls(METADATA_PATH));
+    }
+
+    @Test
+    public void testDropboxMatchesAreMergedByNameAndId() {
+        givenElasticsearchPage(null, named("id:b", "transactions-b.txt"), named("id:c", "transactions-c.txt"));
+        FilePage page = givenHybridFileService(1000).search(new FileQuery("trans", null, null, null), 10, null).join();
+        assertEquals(Arrays.asList("id:a", "id:b", "id:c"), ids(page));
+        assertNull(page.getNextCursor());
+    }
+
+    @Test
+    public void testMergedMatchesPushTheLastFilesToTheNextPage() {
+        givenElasticsearchPage("after:id:c", named("id:b", "transactions-b.txt"), named("id:c", "transactions-c.txt"));
+        when(esRepo.encodeCursor(any())).thenAnswer(invocation -> "after:" + invocation.<FileInfo>getArgument(0).getId());
+        FilePage page = givenHybridFileService(1000).search(new FileQuery("trans", null, null, null), 2, null).join();
+        assertEquals(Arrays.asList("id:a", "id:b"), ids(page));
+        assertEquals("after:id:b", page.getNextCursor(), "the next page starts with the file pushed off this one");
+    }
+
+    @Test
+    public void testDropboxMatchesAfterTheDeadlineAreOnlyIndexed() {
+        givenElasticsearchPage(null, named("id:c", "transactions-c.txt"));
+        long start = System.currentTimeMillis();
+        FilePage page = givenHybridFileService(100).search(new FileQuery("trans", null, null, null), 10, null).join();
+        assertTrue(System.currentTimeMillis() - start < 300, "the search does not wait for dropbox");
+        assertEquals(Collections.singletonList("id:c"), ids(page));
+        verify(esRepo, timeout(2000)).createElasticSearchRecordsIfNotExists(anyList());
+    }
+
+    private void givenElasticsearchPage(String nextCursor, FileInfo... files) {
+        when(esAsyncRepo.findByQuery(any(), anyInt(), isNull())).thenReturn(CompletableFuture.completedFuture(
+                FilePage.builder().files(new ArrayList<>(Arrays.asList(files))).nextCursor(nextCursor).build()));
+    }
+
+    private FileService givenHybridFileService(long deadlineMillis) {
+        FileService fileService = givenFileService();
+        Environment env = mock(Environment.class);
+        when(env.getProperty(eq("DROPBOX_DIRECT"), nullable(String.class))).thenReturn("true");
+        ReflectionTestUtils.setField(fileService, "env", env);
+        ReflectionTestUtils.setField(fileService, "dropboxDeadlineMillis", deadlineMillis);
+        ReflectionTestUtils.setField(fileService, "dropboxMaxResults", 100);
+        return fileService;
+    }
+
+    private static List<String> ids(FilePage page) {
+        return page.getFiles().stream().map(FileInfo::getId).collect(Collectors.toList());
+    }
+
+    private static FileInfo named(String id, String name) {
+        return FileInfo.builder().id(id).name(name).path("/" + name).build();
+    }
+
+    private FileService givenFileService() {
+        return new FileService(esRepo, esAsyncRepo, dropboxStub.repo(), fileSync,
+                new ExpiringCache<>(100, Duration.ofMinutes(5)),
+                new ExpiringCache<>(100, Duration.ofMillis(MISSING_TTL_MILLIS)),
+                lookupPool::execute, new SimpleMeterRegistry());
+    }
+
+    private static String match(String id, String name) {
+        return "{\"metadata\": {\".tag\": \"metadata\", \"metadata\": {\".tag\": \"file\", "
+                + "\"name\": \"" + name + "\", \"id\": \"" + id + "\", "
+                + "\"path_lower\": \"/" + name + "\", \"path_display\": \"/" + name + "\", "
+                + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+                + "\"rev\": \"0123456789abcdef\", \"size\": 1}}}";
+    }
+
+    private static String file(String id) {
+        return "{\".tag\": \"file\", \"name\": \"Transactions13\", \"id\": \"" + id + "\", "
+                + "\"path_lower\": \"/transactions13\", \"path_display\": \"/Transactions13\", "
+                + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+                + "\"rev\": \"0123456789abcdef\", \"size\": 440}";
+    }
+
+}
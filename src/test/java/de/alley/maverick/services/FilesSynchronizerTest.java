@@ -0,0 +1,231 @@
+package de.alley.maverick.services;
+
+import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.repositories.DropboxStub;
+import de.alley.maverick.repositories.ElasticsearchIndexRepo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import de.alley.maverick.repositories.FileInfoBulkWriter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * The delta and the reconciliation of the index with a full listing. Elasticsearch and the crawler are mocked,
+ * the changes and the files still in dropbox are answered by a local stub.
+ */
+public class FilesSynchronizerTest {
+
+    private static final String METADATA_PATH = "/2/files/get_metadata";
+    private static final String CONTINUE_PATH = "/2/files/list_folder/continue";
+    private static final String IN_DROPBOX_ID = "id:in-dropbox";
+
+    private DropboxStub dropboxStub;
+
+    private final ElasticsearchRepo esRepo = mock(ElasticsearchRepo.class);
+    private final ElasticsearchIndexRepo indexRepo = mock(ElasticsearchIndexRepo.class);
+    private final DropboxCrawler crawler = mock(DropboxCrawler.class);
+    private final FileInfoBulkWriter writer = mock(FileInfoBulkWriter.class);
+    private final Set<String> synced = ConcurrentHashMap.newKeySet();
+    private final List<String> deletedByQuery = new ArrayList<>();
+
+    @BeforeEach
+    public void setup() throws IOException {
+        // only the file created on read after the listing has started is still in dropbox
+        dropboxStub = new DropboxStub().endpoint(METADATA_PATH, (call, request) -> request.contains(IN_DROPBOX_ID)
+                ? "{\".tag\": \"file\", \"name\": \"late.txt\", \"id\": \"" + IN_DROPBOX_ID + "\", "
+                + "\"path_lower\": \"/late.txt\", \"path_display\": \"/late.txt\", "
+                + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+                + "\"rev\": \"0123456789abcdef\", \"size\": 1}"
+                : null);
+        when(esRepo.openBulkWriter()).thenReturn(writer);
+        doAnswer(invocation -> synced.add(invocation.getArgument(0))).when(writer).stamp(any(), anyLong());
+        doAnswer(invocation -> synced.add(invocation.<FileInfo>getArgument(0).getId()))
+                .when(writer).upsert(any(), anyLong());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        dropboxStub.stop();
+    }
+
+    @Test
+    public void testMovedFileIsUpserted() {
+        FileInfo indexed = file("id:1", "/old/report.pdf", "rev1", "tag");
+        FileInfo listed = file("id:1", "/new/report.pdf", "rev1");
+        givenIndexed(indexed);
+        givenListed(listed);
+        givenSynchronizer().syncAll();
+        // the upsert request leaves the tags out, see ElasticsearchRepoTest
+        verify(writer).upsert(eq(listed), anyLong());
+        verify(writer, never()).delete(any());
+        verify(esRepo).saveSyncCursor("cursor");
+    }
+
+    @Test
+    public void testUnchangedRevIsOnlyStamped() {
+        givenIndexed(file("id:1", "/report.pdf", "rev1", "tag"));
+        givenListed(file("id:1", "/report.pdf", "rev1"));
+        givenSynchronizer().syncAll();
+        verify(writer).stamp(eq("id:1"), anyLong());
+        verify(writer, never()).upsert(any(), anyLong());
+        verify(writer, never()).delete(any());
+    }
+
+    @Test
+    public void testListedFilesAreStampedWithTheSweptRun() {
+        givenIndexed(file("id:1", "/report.pdf", "rev1"), file("id:2", "/old.pdf", "rev1"));
+        givenListed(file("id:1", "/report.pdf", "rev1"), file("id:3", "/new.pdf", "rev1"));
+        givenSynchronizer().syncAll();
+        ArgumentCaptor<Long> stamped = ArgumentCaptor.forClass(Long.class);
+        ArgumentCaptor<Long> upserted = ArgumentCaptor.forClass(Long.class);
+        verify(writer).stamp(eq("id:1"), stamped.capture());
+        verify(writer).upsert(argThat(f -> f.getId().equals("id:3")), upserted.capture());
+        verify(esRepo).deleteUntaggedRecordsNotSynced(stamped.getValue());
+        assertEquals(stamped.getValue(), upserted.getValue());
+        assertEquals(Collections.singletonList("id:2"), deletedByQuery);
+    }
+
+    @Test
+    public void testUntaggedUnlistedFileIsDeleted() {
+        givenIndexed(file("id:1", "/report.pdf", "rev1"));
+        givenListed();
+        givenSynchronizer().syncAll();
+        assertEquals(Collections.singletonList("id:1"), deletedByQuery);
+        assertEquals(0, dropboxStub.calls(METADATA_PATH), "an untagged file is not asked in dropbox");
+    }
+
+    @Test
+    public void testTaggedUnlistedFileIsKeptWhileInDropbox() {
+        givenIndexed(file(IN_DROPBOX_ID, "/late.txt", "rev1", "tag"));
+        givenListed();
+        givenSynchronizer().syncAll();
+        verify(writer, never()).delete(any());
+    }
+
+    @Test
+    public void testTaggedUnlistedFileIsDeletedWhenGoneFromDropbox() {
+        givenIndexed(file("id:1", "/report.pdf", "rev1", "tag"));
+        givenListed();
+        givenSynchronizer().syncAll();
+        verify(writer).delete("id:1");
+    }
+
+    @Test
+    public void testTaggedUnlistedFilesAreConfirmedConcurrently() {
+        givenIndexed(file("id:1", "/report.pdf", "rev1", "tag"), file(IN_DROPBOX_ID, "/late.txt", "rev1", "tag"),
+                file("id:2", "/notes.txt", "rev1", "tag"));
+        givenListed();
+        FilesSynchronizer synchronizer = givenSynchronizer();
+        ReflectionTestUtils.setField(synchronizer, "confirmConcurrency", 2);
+        synchronizer.syncAll();
+        assertEquals(3, dropboxStub.calls(METADATA_PATH));
+        verify(writer).delete("id:1");
+        verify(writer).delete("id:2");
+        verify(writer, never()).delete(IN_DROPBOX_ID);
+    }
+
+    @Test
+    public void testDeltaDeletesFoldersButNotTheFilesMovedOutOfThem() {
+        // the folder /old is deleted after its file was moved to /new
+        dropboxStub.endpoint(CONTINUE_PATH, call -> "{\"entries\": ["
+                + "{\".tag\": \"deleted\", \"name\": \"old\", \"path_lower\": \"/old\", \"path_display\": \"/old\"}, "
+                + "{\".tag\": \"file\", \"name\": \"report.pdf\", \"id\": \"id:1\", "
+                + "\"path_lower\": \"/new/report.pdf\", \"path_display\": \"/new/report.pdf\", "
+                + "\"client_modified\": \"2020-01-01T00:00:00Z\", \"server_modified\": \"2020-01-01T00:00:00Z\", "
+                + "\"rev\": \"0123456789abcdef\", \"size\": 440}], "
+                + "\"cursor\": \"next\", \"has_more\": false}");
+        when(esRepo.findSyncCursor()).thenReturn(Optional.of("cursor"));
+        givenSynchronizer().syncChanges();
+        // the children of /old go with it, the moved file is excluded and keeps its tags
+        verify(esRepo).deleteElasticsearchRecordsByPaths(Collections.singletonList("/old"), Collections.singleton("id:1"));
+        verify(writer).upsert(argThat(f -> f.getId().equals("id:1") && f.getPath().equals("/new/report.pdf")));
+        verify(esRepo).saveSyncCursor("next");
+        verify(crawler, never()).crawl(any());
+    }
+
+    @Test
+    public void testResetCursorFallsBackToTheFullListing() {
+        dropboxStub.endpoint(CONTINUE_PATH, call -> "{\"error_summary\": \"reset/..\", \"error\": {\".tag\": \"reset\"}}");
+        when(esRepo.findSyncCursor()).thenReturn(Optional.of("cursor"));
+        givenIndexed();
+        givenListed(file("id:1", "/report.pdf", "rev1"));
+        givenSynchronizer().syncChanges();
+        verify(crawler).crawl(any());
+        verify(writer).upsert(argThat(f -> f.getId().equals("id:1")), anyLong());
+        verify(esRepo).saveSyncCursor("cursor");
+    }
+
+    private void givenIndexed(FileInfo... files) {
+        when(esRepo.findElasticsearchRecordsByIds(anyCollection())).thenAnswer(invocation -> Arrays.stream(files)
+                .filter(f -> invocation.<Collection<String>>getArgument(0).contains(f.getId()))
+                .collect(Collectors.toMap(FileInfo::getId, f -> f)));
+        // the files not stamped by the run are deleted by query when untagged, or scanned when tagged
+        when(esRepo.deleteUntaggedRecordsNotSynced(anyLong())).thenAnswer(invocation -> {
+            Arrays.stream(files).filter(f -> f.getTags().isEmpty() && !synced.contains(f.getId()))
+                    .forEach(f -> deletedByQuery.add(f.getId()));
+            return (long) deletedByQuery.size();
+        });
+        doAnswer(invocation -> {
+            Arrays.stream(files).filter(f -> !f.getTags().isEmpty() && !synced.contains(f.getId()))
+                    .forEach(invocation.<Consumer<FileInfo>>getArgument(1));
+            return null;
+        }).when(esRepo).scanTaggedRecordsNotSynced(anyLong(), any());
+    }
+
+    private void givenListed(FileInfo... files) {
+        when(crawler.crawl(any())).thenAnswer(invocation -> {
+            Arrays.stream(files).forEach(invocation.<Consumer<FileInfo>>getArgument(0));
+            return "cursor";
+        });
+    }
+
+    private FilesSynchronizer givenSynchronizer() {
+        FilesSynchronizer synchronizer = new FilesSynchronizer(esRepo, indexRepo, dropboxStub.repo(), crawler,
+                new ExpiringCache<>(100, Duration.ofMinutes(5)), new ExpiringCache<>(100, Duration.ofMinutes(5)),
+                new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(synchronizer, "delta", true);
+        ReflectionTestUtils.setField(synchronizer, "diffChunkSize", 500);
+        ReflectionTestUtils.setField(synchronizer, "confirmConcurrency", 4);
+        return synchronizer;
+    }
+
+    private static FileInfo file(String id, String path, String rev, String... tags) {
+        return FileInfo.builder()
+                .id(id)
+                .name(path.substring(path.lastIndexOf('/') + 1))
+                .path(path)
+                .size(440L)
+                .rev(rev)
+                .tags(tags.length == 0 ? new ArrayList<>() : Arrays.asList(tags))
+                .build();
+    }
+
+}
@@ -1,24 +1,43 @@
 package de.alley.maverick.web;
 
+import de.alley.maverick.protocol.DeadLetter;
 import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.TagBatchForm;
 import de.alley.maverick.protocol.TagForm;
+import de.alley.maverick.protocol.TagOperationForm;
+import de.alley.maverick.repositories.ElasticsearchDeadLetterRepo;
+import de.alley.maverick.repositories.ElasticsearchRepo;
+import de.alley.maverick.repositories.FileInfoBulkWriter;
+import de.alley.maverick.repositories.Mode;
 import lombok.extern.slf4j.Slf4j;
 import org.hamcrest.Matchers;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
 
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.test.web.servlet.result.MockMvcResultHandlers.print;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -31,6 +50,12 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @ActiveProfiles("elasticsearch")
 public class FileRestControllerElasticsearchTest extends GeneralControllerTest {
 
+    @Autowired
+    private ElasticsearchDeadLetterRepo deadLetterRepo;
+
+    @Autowired
+    private ElasticsearchRepo esRepo;
+
     @Test
     @Order(0)
     public void testGetFileWithCorrectFileId() throws Exception {
@@ -379,4 +404,270 @@ public class FileRestControllerElasticsearchTest extends GeneralControllerTest {
                 .andExpect(jsonPath("$", hasSize(0)));
     }
 
+    @Test
+    @Order(20)
+    public void testSearchFilePaginated() throws Exception {
+        MvcResult firstPage = searchFile("Transactions", 10, null)
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(10)))
+                .andExpect(header().string(HttpHeaders.LINK, containsString("rel=\"next\"")))
+                .andReturn();
+
+        searchFile("Transactions", 10, nextCursor(firstPage))
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(5)))
+                .andExpect(header().doesNotExist(HttpHeaders.LINK));
+    }
+
+    @Test
+    @Order(21)
+    public void testSearchFileWithNotValidPage() throws Exception {
+        searchFile("Transactions", 0, null)
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+        searchFile("Transactions", 10, faker.internet().uuid())
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(22)
+    public void testExportFiles() throws Exception {
+        String exported = exportFiles("Transactions")
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+        assertEquals(15, exported.split("\n").length);
+    }
+
+    @Test
+    @Order(23)
+    public void testUpdateTagsInBatch() throws Exception {
+        FileInfo correct = givenCorrectFileInfo();
+        FileInfo unknown = givenUnknownFileInfo();
+        List<TagOperationForm> operations = new ArrayList<>();
+        operations.add(TagOperationForm.builder().fileId(correct.getId()).mode(Mode.RESET)
+                .tags(List.of("tag1", "tag2")).build());
+        operations.add(TagOperationForm.builder().fileId(correct.getId()).mode(Mode.MERGE)
+                .tags(List.of("tag2", "tag3")).build());
+        operations.add(TagOperationForm.builder().fileId(correct.getId()).mode(Mode.DELETE)
+                .tags(List.of("tag1")).build());
+        operations.add(TagOperationForm.builder().fileId(unknown.getId()).mode(Mode.RESET)
+                .tags(List.of("tag1")).build());
+
+        ResultActions result = updateTags(TagBatchForm.builder().operations(operations).build());
+        result
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(4)))
+                .andExpect(jsonPath("$[0].status", is(200)))
+                .andExpect(jsonPath("$[1].status", is(200)))
+                .andExpect(jsonPath("$[2].status", is(200)))
+                .andExpect(jsonPath("$[2].file.tags", Matchers.containsInAnyOrder("tag2", "tag3")))
+                .andExpect(jsonPath("$[3].fileId", is(equalTo(unknown.getId()))))
+                .andExpect(jsonPath("$[3].status", is(404)));
+
+        getFile(correct.getId())
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect((jsonPath("$.tags", Matchers.containsInAnyOrder("tag2", "tag3"))));
+    }
+
+    @Test
+    @Order(24)
+    public void testUpdateTagsInBatchWithNotValidOperations() throws Exception {
+        updateTags(TagBatchForm.builder().operations(new ArrayList<>()).build())
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+        FileInfo notValid = givenNotValidFileInfo();
+        List<TagOperationForm> operations = new ArrayList<>();
+        operations.add(TagOperationForm.builder().fileId(notValid.getId()).mode(Mode.MERGE)
+                .tags(List.of("tag1")).build());
+        updateTags(TagBatchForm.builder().operations(operations).build())
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(25)
+    public void testSearchFileByTags() throws Exception {
+        FileInfo correct = givenCorrectFileInfo();
+        searchFileByTags("tags", "tag2", "tag3")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].id", is(equalTo(correct.getId()))));
+        searchFileByTags("anyTags", "tag1", "tag3")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)));
+        searchFileByTags("notTags", "tag2")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", Matchers.not(Matchers.hasItem(correct.getId()))));
+        searchFileByTags("tags", "")
+                .andDo(print())
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    @Order(26)
+    public void testCountTags() throws Exception {
+        countTags("tags", "tag2")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(2)))
+                .andExpect(jsonPath("$[*].tag", Matchers.containsInAnyOrder("tag2", "tag3")))
+                .andExpect(jsonPath("$[0].count", is(1)));
+    }
+
+    @Test
+    @Order(27)
+    public void testReplayDeadLetters() throws Exception {
+        FileInfo parked = FileInfo.builder()
+                .id("id:K59R_zjubxAAAAAAAAAAFx")
+                .name("Transactions13")
+                .path("/apps/monefy/database/transactions13")
+                .size(440L)
+                .build();
+        deadLetterRepo.park(Collections.singletonList(DeadLetter.builder()
+                .fileId(parked.getId())
+                .operation(DeadLetter.UPSERT)
+                .document(objectMapper.convertValue(parked, Map.class))
+                .status(429)
+                .error("rejected execution")
+                .failedAt(Instant.now().toString())
+                .build()));
+        awaitDeadLetter(parked.getId());
+        findDeadLetters()
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].fileId", Matchers.hasItem(parked.getId())));
+        replayDeadLetters()
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.replayed", is(1)))
+                .andExpect(jsonPath("$.failed", hasSize(0)));
+        findDeadLetters()
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(0)));
+    }
+
+
+    @Test
+    @Order(28)
+    public void testDeletedFolderTakesItsChildrenButNotTheMovedFiles() throws Exception {
+        FileInfo child = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG1", "/deleted/child.txt");
+        FileInfo nested = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG2", "/deleted/sub/nested.txt");
+        FileInfo sibling = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG3", "/deleted-not/sibling.txt");
+        FileInfo moved = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG4", "/deleted/moved.txt");
+        esRepo.createElasticSearchRecordsIfNotExists(List.of(child, nested, sibling, moved));
+        resetTags(moved.getId(), TagForm.builder().tags(List.of("kept")).build())
+                .andExpect(status().isCreated());
+        esRepo.refresh();
+
+        // the moved file has been re-listed in the same delta, its id is excluded
+        assertEquals(2, esRepo.deleteElasticsearchRecordsByPaths(List.of("/deleted"), Set.of(moved.getId())));
+
+        assertTrue(esRepo.findElasticsearchRecordById(child.getId()).isEmpty());
+        assertTrue(esRepo.findElasticsearchRecordById(nested.getId()).isEmpty());
+        assertTrue(esRepo.findElasticsearchRecordById(sibling.getId()).isPresent(), "only the children of the folder");
+        assertEquals(List.of("kept"), esRepo.findElasticsearchRecordById(moved.getId())
+                .map(FileInfo::getTags).orElse(null));
+    }
+
+    @Test
+    @Order(29)
+    public void testSearchFileByOneOrTwoCharacters() throws Exception {
+        FileInfo inner = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG5", "/short/aqxb.txt");
+        FileInfo exact = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG6", "/short/qx.txt");
+        FileInfo reversed = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG7", "/short/xqa.txt");
+        esRepo.createElasticSearchRecordsIfNotExists(List.of(inner, exact, reversed));
+        esRepo.refresh();
+
+        // shorter than a trigram, matched on the indexed 1 and 2 character grams
+        searchFile("QX")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", Matchers.hasItems(inner.getId(), exact.getId())))
+                .andExpect(jsonPath("$[*].id", Matchers.not(Matchers.hasItem(reversed.getId()))));
+        searchFile("q")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", Matchers.hasItems(inner.getId(), exact.getId(), reversed.getId())));
+    }
+
+    @Test
+    @Order(30)
+    public void testDeletedFolderTakesItsChildrenNotRefreshedYet() {
+        FileInfo child = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG8", "/unrefreshed/child.txt");
+        FileInfo nested = givenFolderFile("id:K59R_zjubxAAAAAAAAAAG9", "/unrefreshed/sub/nested.txt");
+        // upserted by the synchronization and deleted by the following delta, with no refresh in between
+        esRepo.suspendRefresh();
+        try {
+            try (FileInfoBulkWriter writer = esRepo.openBulkWriter()) {
+                writer.upsert(child);
+                writer.upsert(nested);
+            }
+            assertEquals(2, esRepo.deleteElasticsearchRecordsByPaths(List.of("/unrefreshed"), Set.of()));
+        } finally {
+            esRepo.resumeRefresh();
+        }
+
+        assertTrue(esRepo.findElasticsearchRecordById(child.getId()).isEmpty());
+        assertTrue(esRepo.findElasticsearchRecordById(nested.getId()).isEmpty());
+    }
+
+    @Test
+    @Order(31)
+    public void testSearchFileMatchesTheTrigramsOnlyInOrder() throws Exception {
+        FileInfo match = givenFolderFile("id:K59R_zjubxAAAAAAAAAAH1", "/phrase/wabcdz.txt");
+        FileInfo scattered = givenFolderFile("id:K59R_zjubxAAAAAAAAAAH2", "/phrase/bcdxabc.txt");
+        esRepo.createElasticSearchRecordsIfNotExists(List.of(match, scattered));
+        esRepo.refresh();
+
+        // both names have the trigrams abc and bcd, only one has them adjacent
+        searchFile("ABCD")
+                .andDo(print())
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[*].id", Matchers.hasItem(match.getId())))
+                .andExpect(jsonPath("$[*].id", Matchers.not(Matchers.hasItem(scattered.getId()))));
+    }
+
+    @Test
+    @Order(32)
+    public void testSearchFileWithoutLimitAndCursorIsNotPaged() throws Exception {
+        List<FileInfo> files = IntStream.range(0, 120)
+                .mapToObj(i -> givenFolderFile(String.format("id:K59R_zjubxAAAAAAAAAUP%03d", i),
+                        String.format("/unpaged/unpagedfile%03d.txt", i)))
+                .collect(Collectors.toList());
+        esRepo.createElasticSearchRecordsIfNotExists(files);
+        esRepo.refresh();
+
+        // all matches as before the paging, more than a default page
+        searchFile("unpagedfile")
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(120)))
+                .andExpect(header().doesNotExist(HttpHeaders.LINK));
+    }
+
+    private static FileInfo givenFolderFile(String id, String path) {
+        return FileInfo.builder()
+                .id(id)
+                .name(path.substring(path.lastIndexOf('/') + 1))
+                .path(path)
+                .size(1L)
+                .build();
+    }
+
+    private void awaitDeadLetter(String fileId) throws InterruptedException {
+        //parked in the background and listed after the next refresh of the dead letter index
+        for (int attempt = 0; attempt < 50; attempt++) {
+            if (deadLetterRepo.findDeadLetters(10).stream().anyMatch(letter -> fileId.equals(letter.getFileId()))) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+    }
 }
@@ -5,7 +5,9 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.javafaker.Faker;
 import de.alley.maverick.protocol.FileInfo;
+import de.alley.maverick.protocol.TagBatchForm;
 import de.alley.maverick.protocol.TagForm;
+import de.alley.maverick.services.ElasticsearchReadiness;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.MethodOrderer;
@@ -16,13 +18,19 @@ import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.hateoas.Link;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 import org.springframework.web.context.WebApplicationContext;
+import org.springframework.web.util.UriComponentsBuilder;
 import org.testcontainers.containers.wait.strategy.Wait;
 import org.testcontainers.elasticsearch.ElasticsearchContainer;
 import org.testcontainers.junit.jupiter.Container;
@@ -31,6 +39,7 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -56,13 +65,20 @@ public abstract class GeneralControllerTest {
     @Autowired
     private WebApplicationContext context;
 
+    @Autowired
+    private ElasticsearchReadiness readiness;
+
     protected final Faker faker = new Faker();
 
     public MockMvc mockMvc;
 
     @BeforeEach
-    public void setup() {
+    public void setup() throws InterruptedException {
         this.mockMvc = MockMvcBuilders.webAppContextSetup(this.context).build();
+        // the index is initialized in the background once elasticsearch is up
+        for (int attempt = 0; attempt < 600 && !readiness.isReady(); attempt++) {
+            Thread.sleep(100);
+        }
     }
 
     @Container
@@ -128,39 +144,103 @@ public abstract class GeneralControllerTest {
     }
 
     protected ResultActions searchFile(String fileName) throws Exception {
-        return mockMvc.perform(get(SLASH + "search")
+        return dispatch(get(SLASH + "search")
                 .param("fileName", fileName)
                 .contentType(MediaType.APPLICATION_JSON)
         );
     }
 
+    protected ResultActions searchFile(String fileName, int limit, String cursor) throws Exception {
+        MockHttpServletRequestBuilder request = get(SLASH + "search")
+                .param("fileName", fileName)
+                .param("limit", String.valueOf(limit))
+                .contentType(MediaType.APPLICATION_JSON);
+        if (cursor != null) {
+            request.param("cursor", cursor);
+        }
+        return dispatch(request);
+    }
+
+    protected ResultActions searchFileByTags(String tagsParam, String... tags) throws Exception {
+        return dispatch(get(SLASH + "search")
+                .param(tagsParam, tags)
+                .contentType(MediaType.APPLICATION_JSON)
+        );
+    }
+
+    protected ResultActions countTags(String tagsParam, String... tags) throws Exception {
+        return dispatch(get(SLASH + "tags")
+                .param(tagsParam, tags)
+                .contentType(MediaType.APPLICATION_JSON)
+        );
+    }
+
+    protected ResultActions findDeadLetters() throws Exception {
+        return dispatch(get(SLASH + "dead-letters")
+                .contentType(MediaType.APPLICATION_JSON)
+        );
+    }
+
+    protected ResultActions replayDeadLetters() throws Exception {
+        return dispatch(post(SLASH + "dead-letters/replay")
+                .contentType(MediaType.APPLICATION_JSON)
+        );
+    }
+
+    protected ResultActions exportFiles(String fileName) throws Exception {
+        return dispatch(get(SLASH + "search" + SLASH + "export")
+                .param("fileName", fileName)
+        );
+    }
+
+    /**
+     * The handlers complete asynchronously, the response is there after the async dispatch.
+     */
+    protected ResultActions dispatch(RequestBuilder request) throws Exception {
+        ResultActions started = mockMvc.perform(request);
+        MvcResult result = started.andReturn();
+        return result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)) : started;
+    }
+
+    protected String nextCursor(MvcResult result) {
+        String href = Link.valueOf(result.getResponse().getHeader(HttpHeaders.LINK)).getHref();
+        return UriComponentsBuilder.fromUriString(href).build().getQueryParams().getFirst("cursor");
+    }
+
     protected ResultActions getFile(String fileId) throws Exception {
-        return mockMvc.perform(get(SLASH + fileId)
+        return dispatch(get(SLASH + fileId)
                 .contentType(MediaType.APPLICATION_JSON)
         );
     }
 
     protected ResultActions resetTags(String fileId, TagForm tagForm) throws Exception {
-        return mockMvc.perform(post(SLASH + fileId + SLASH + "tags")
+        return dispatch(post(SLASH + fileId + SLASH + "tags")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(asJson(tagForm))
         );
     }
 
     protected ResultActions mergeTags(String fileId, TagForm tagForm) throws Exception {
-        return mockMvc.perform(put(SLASH + fileId + SLASH + "tags")
+        return dispatch(put(SLASH + fileId + SLASH + "tags")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(asJson(tagForm))
         );
     }
 
     protected ResultActions deleteTags(String fileId, TagForm tagForm) throws Exception {
-        return mockMvc.perform(delete(SLASH + fileId + SLASH + "tags")
+        return dispatch(delete(SLASH + fileId + SLASH + "tags")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(asJson(tagForm))
         );
     }
 
+    protected ResultActions updateTags(TagBatchForm tagBatchForm) throws Exception {
+        return dispatch(post(SLASH + "tags")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJson(tagBatchForm))
+        );
+    }
+
     protected String asJson(Object object) throws JsonProcessingException {
         return this.objectMapper.setSerializationInclusion(JsonInclude.Include.NON_NULL).writeValueAsString(object);
     }